@@ -0,0 +1,83 @@
+/*
+ * Copyright 2014 Julio García Muñoz (ZhDev)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.zhdev.wear.humantime;
+
+import net.zhdev.wear.humantime.shared.Constants;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+
+import java.io.OutputStream;
+
+/**
+ * <p><code>BackgroundFormat</code> provides the format the background images are encoded in
+ * before sending them to the watch, as set in the resources.</p>
+ *
+ * <p>PNG is lossless. WebP and JPEG use the configured quality and produce much smaller files,
+ * which are faster to send and to decode on the watch. WebP is always encoded lossy before
+ * Android 10 (API 29), even at quality 100; from then on quality 100 produces a lossless file.</p>
+ *
+ * <p>The ambient variant is always encoded as PNG, whatever the configured format. It only has a
+ * few gray levels, which the ringing of a lossy encoder would blur into many more, and being
+ * mostly flat areas it compresses well anyway.</p>
+ *
+ * <p>The files are stored without an extension, since the decoders detect the format from their
+ * content.</p>
+ *
+ * @author Julio García Muñoz (ZhDev)
+ */
+public final class BackgroundFormat {
+
+    private BackgroundFormat() {
+
+    }
+
+    public static Bitmap.CompressFormat getFormat(Context context) {
+        String format = context.getString(R.string.background_format);
+        if ("webp".equals(format)) {
+            return Bitmap.CompressFormat.WEBP;
+        } else if ("jpeg".equals(format)) {
+            return Bitmap.CompressFormat.JPEG;
+        } else if ("png".equals(format)) {
+            return Bitmap.CompressFormat.PNG;
+        }
+        throw new IllegalArgumentException("Invalid background format: " + format);
+    }
+
+    public static int getQuality(Context context) {
+        if (getFormat(context) == Bitmap.CompressFormat.PNG) {
+            return 100;
+        }
+        return context.getResources().getInteger(R.integer.background_quality);
+    }
+
+    /**
+     * Encodes a background variant with the configured format and quality, or as PNG if it's the
+     * ambient one.
+     *
+     * @param variant one of the <code>Constants.BACKGROUND_VARIANT_*</code> values
+     * @return true if it was successfully encoded
+     */
+    public static boolean compress(Context context, Bitmap bitmap, String variant,
+            OutputStream stream) {
+        if (Constants.BACKGROUND_VARIANT_AMBIENT.equals(variant)) {
+            return bitmap.compress(Bitmap.CompressFormat.PNG, 100, stream);
+        }
+        return bitmap.compress(getFormat(context), getQuality(context), stream);
+    }
+
+}
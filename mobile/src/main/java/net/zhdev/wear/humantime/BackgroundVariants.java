@@ -0,0 +1,124 @@
+/*
+ * Copyright 2014 Julio García Muñoz (ZhDev)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.zhdev.wear.humantime;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.ColorMatrix;
+import android.graphics.ColorMatrixColorFilter;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.RectF;
+
+/**
+ * <p><code>BackgroundVariants</code> prepares the variants of the background image that are sent
+ * to the watches, so they only have to display them:</p>
+ *
+ * <ul>
+ * <li>The image sized for the display of a watch.</li>
+ * <li>A dimmed version, with a dark scrim that keeps the text legible when it has no shadow.</li>
+ * <li>An ambient version in a few dark gray levels, suitable for low-bit ambient mode.</li>
+ * </ul>
+ *
+ * @author Julio García Muñoz (ZhDev)
+ */
+public final class BackgroundVariants {
+
+    private static final int SCRIM_COLOR = 0x66000000;
+
+    // The ambient variant is kept dark to limit the power used and the burn-in
+    private static final float AMBIENT_BRIGHTNESS = 0.4F;
+
+    private static final int AMBIENT_LEVELS = 4;
+
+    private BackgroundVariants() {
+
+    }
+
+    /**
+     * Scales an image to fill a display, cropping the center if the aspect ratios differ.
+     *
+     * @param source the image
+     * @param width  the width of the display in pixels
+     * @param height the height of the display in pixels
+     * @return a new bitmap of the size of the display
+     */
+    public static Bitmap createSized(Bitmap source, int width, int height) {
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("Invalid size: " + width + "x" + height);
+        }
+        float scale = Math.max((float) width / source.getWidth(),
+                (float) height / source.getHeight());
+        float cropWidth = width / scale;
+        float cropHeight = height / scale;
+        float left = (source.getWidth() - cropWidth) / 2.0F;
+        float top = (source.getHeight() - cropHeight) / 2.0F;
+        Rect sourceRect = new Rect(Math.round(left), Math.round(top),
+                Math.round(left + cropWidth), Math.round(top + cropHeight));
+
+        Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(bitmap);
+        canvas.drawBitmap(source, sourceRect, new RectF(0, 0, width, height),
+                new Paint(Paint.FILTER_BITMAP_FLAG));
+        return bitmap;
+    }
+
+    /**
+     * @param sized an image already sized for a display
+     * @return a new bitmap with the image darkened by a scrim
+     */
+    public static Bitmap createDimmed(Bitmap sized) {
+        Bitmap bitmap = sized.copy(Bitmap.Config.ARGB_8888, true);
+        new Canvas(bitmap).drawColor(SCRIM_COLOR);
+        return bitmap;
+    }
+
+    /**
+     * @param sized an image already sized for a display
+     * @return a new bitmap with the image in a few dark gray levels
+     */
+    public static Bitmap createAmbient(Bitmap sized) {
+        ColorMatrix matrix = new ColorMatrix();
+        matrix.setSaturation(0);
+        ColorMatrix brightness = new ColorMatrix();
+        brightness.setScale(AMBIENT_BRIGHTNESS, AMBIENT_BRIGHTNESS, AMBIENT_BRIGHTNESS, 1);
+        matrix.postConcat(brightness);
+        Paint paint = new Paint();
+        paint.setColorFilter(new ColorMatrixColorFilter(matrix));
+
+        Bitmap bitmap = Bitmap.createBitmap(sized.getWidth(), sized.getHeight(),
+                Bitmap.Config.ARGB_8888);
+        new Canvas(bitmap).drawBitmap(sized, 0, 0, paint);
+
+        // Posterize the gray levels
+        int width = bitmap.getWidth();
+        int[] row = new int[width];
+        int maxGray = Math.round(255 * AMBIENT_BRIGHTNESS);
+        for (int y = 0; y < bitmap.getHeight(); y++) {
+            bitmap.getPixels(row, 0, width, 0, y, width, 1);
+            for (int x = 0; x < width; x++) {
+                int level = Math.round(Color.red(row[x]) * (AMBIENT_LEVELS - 1) / (float) maxGray);
+                int gray = Math.min(level, AMBIENT_LEVELS - 1) * maxGray / (AMBIENT_LEVELS - 1);
+                row[x] = Color.rgb(gray, gray, gray);
+            }
+            bitmap.setPixels(row, 0, width, 0, y, width, 1);
+        }
+        return bitmap;
+    }
+
+}
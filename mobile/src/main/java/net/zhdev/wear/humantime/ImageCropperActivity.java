@@ -24,16 +24,17 @@ import android.app.Activity;
 import android.content.Intent;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.graphics.Rect;
 import android.media.ExifInterface;
-import android.media.ThumbnailUtils;
 import android.net.Uri;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.util.DisplayMetrics;
 import android.view.View;
 import android.widget.Button;
+import android.widget.Toast;
 
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 
@@ -42,6 +43,10 @@ import java.io.IOException;
  * passed to the <code>Activity</code> in the <code>Intent</code> data and the resulting image will
  * be stored in persistent memory and its Uri will be passed back as the activity result.
  *
+ * <p>The preview is decoded on a worker thread. The crop is done with a {@link RegionCropper},
+ * decoding only the selected rectangle of the original file, so very large photos can be cropped
+ * without loading them whole.</p>
+ *
  * @author Julio García Muñoz (ZhDev)
  * @see com.edmodo.cropper.CropImageView
  */
@@ -54,6 +59,22 @@ public class ImageCropperActivity extends Activity {
      */
     private static final int IMAGE_SIZE = 320;
 
+    private CropImageView mImageCropper;
+
+    private Button mButtonOK;
+
+    private File mImageFile;
+
+    private int mSampleSize;
+
+    private int mRotation;
+
+    private int mImageWidth;
+
+    private int mImageHeight;
+
+    private AsyncTask<?, ?, ?> mTask;
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -65,50 +86,23 @@ public class ImageCropperActivity extends Activity {
 
         setContentView(R.layout.activity_image_cropper);
 
-        final CropImageView imageCropper = (CropImageView) findViewById(R.id.image_cropper);
-        final File imageFile = new File(imagePath);
-        if (!imageFile.exists()) {
+        mImageCropper = (CropImageView) findViewById(R.id.image_cropper);
+        mImageFile = new File(imagePath);
+        if (!mImageFile.exists()) {
             throw new IllegalArgumentException("Invalid file");
         }
-        Bitmap bitmap = getScaledBitmapFromFile(imagePath);
-        ExifInterface exifInterface = null;
-        try {
-            exifInterface = new ExifInterface(imagePath);
-        } catch (IOException e) {
-            // If it goes wrong at most we lose the image orientation
-        }
-        imageCropper.setImageBitmap(bitmap, exifInterface);
 
-        Button buttonOK = (Button) findViewById(R.id.button_ok);
+        mButtonOK = (Button) findViewById(R.id.button_ok);
+        // The image can't be cropped until the preview is loaded
+        mButtonOK.setEnabled(false);
         // Store the image and pass the resulting Uri back to the calling Activity
-        buttonOK.setOnClickListener(new View.OnClickListener() {
+        mButtonOK.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View v) {
-                // Get the squared cropped image
-                Bitmap bitmap = imageCropper.getCroppedImage();
-                // Resize it to the specific size ox 320x320 for the watch face
-                Bitmap resizedBitmap = ThumbnailUtils
-                        .extractThumbnail(bitmap, IMAGE_SIZE, IMAGE_SIZE,
-                                ThumbnailUtils.OPTIONS_RECYCLE_INPUT);
-                // Store the image
-                FileOutputStream outputStream = null;
-                try {
-                    outputStream = openFileOutput(Constants.BACKGROUND_ASSET_FILE_NAME,
-                            MODE_PRIVATE);
-                } catch (FileNotFoundException e) {
-                }
-                boolean saved = resizedBitmap
-                        .compress(Bitmap.CompressFormat.PNG, 100, outputStream);
-                if (saved) {
-                    Intent intent = new Intent();
-                    intent.setData(
-                            Uri.fromFile(getFileStreamPath(Constants.BACKGROUND_ASSET_FILE_NAME)));
-                    setResult(RESULT_OK, intent);
-                } else {
-                    setResult(RESULT_CANCELED);
-                }
-                imageFile.delete();
-                finish();
+                mButtonOK.setEnabled(false);
+                Rect region = RegionCropper.mapToSource(mImageCropper.getActualCropRect(),
+                        mSampleSize, mRotation, mImageWidth, mImageHeight);
+                mTask = new CropTask(region).execute();
             }
         });
 
@@ -118,20 +112,35 @@ public class ImageCropperActivity extends Activity {
             @Override
             public void onClick(View v) {
                 setResult(RESULT_CANCELED);
-                imageFile.delete();
+                mImageFile.delete();
                 finish();
             }
         });
+
+        DisplayMetrics metrics = getResources().getDisplayMetrics();
+        mTask = new PreviewTask(metrics.widthPixels, metrics.heightPixels).execute();
+    }
+
+    @Override
+    protected void onDestroy() {
+        if (mTask != null) {
+            mTask.cancel(false);
+        }
+        super.onDestroy();
     }
 
     /**
      * Loads a scaled bitmap from a file with a factor of reduction in a power of 2 to make it as
-     * close as possible to the display size (minus system decorations).
+     * close as possible to the display size (minus system decorations). The size of the image and
+     * the sample size are stored to map the crop back to the file.
      *
-     * @param imagePath the absolute path of the image file to be loaded
+     * @param imagePath     the absolute path of the image file to be loaded
+     * @param allowedWidth  the width of the display
+     * @param allowedHeight the height of the display
      * @return a scaled bitmap
      */
-    private Bitmap getScaledBitmapFromFile(String imagePath) {
+    private Bitmap getScaledBitmapFromFile(String imagePath, int allowedWidth,
+            int allowedHeight) {
         BitmapFactory.Options options = new BitmapFactory.Options();
         options.inJustDecodeBounds = true;
 
@@ -139,10 +148,8 @@ public class ImageCropperActivity extends Activity {
 
         int bitmapWidth = options.outWidth;
         int bitmapHeight = options.outHeight;
-
-        DisplayMetrics metrics = getResources().getDisplayMetrics();
-        int allowedWidth = metrics.widthPixels;
-        int allowedHeight = metrics.heightPixels;
+        mImageWidth = bitmapWidth;
+        mImageHeight = bitmapHeight;
 
         int sampleSize = 1;
         if (bitmapWidth > allowedWidth || bitmapHeight > allowedHeight) {
@@ -153,9 +160,117 @@ public class ImageCropperActivity extends Activity {
                 sampleSize *= 2;
             }
         }
+        mSampleSize = sampleSize;
 
         options.inSampleSize = sampleSize;
         options.inJustDecodeBounds = false;
         return BitmapFactory.decodeFile(imagePath, options);
     }
+
+    /**
+     * Decodes the preview and reads the Exif information of the image.
+     */
+    private class PreviewTask extends AsyncTask<Void, Void, Bitmap> {
+
+        private final int mAllowedWidth;
+
+        private final int mAllowedHeight;
+
+        private ExifInterface mExifInterface;
+
+        public PreviewTask(int allowedWidth, int allowedHeight) {
+            mAllowedWidth = allowedWidth;
+            mAllowedHeight = allowedHeight;
+        }
+
+        @Override
+        protected Bitmap doInBackground(Void... params) {
+            String imagePath = mImageFile.getPath();
+            try {
+                mExifInterface = new ExifInterface(imagePath);
+            } catch (IOException e) {
+                // If it goes wrong at most we lose the image orientation
+            }
+            return getScaledBitmapFromFile(imagePath, mAllowedWidth, mAllowedHeight);
+        }
+
+        @Override
+        protected void onPostExecute(Bitmap bitmap) {
+            mTask = null;
+            if (bitmap == null) {
+                Toast.makeText(ImageCropperActivity.this, R.string.error_opening_file,
+                        Toast.LENGTH_SHORT).show();
+                setResult(RESULT_CANCELED);
+                mImageFile.delete();
+                finish();
+                return;
+            }
+            mRotation = RegionCropper.getRotation(mExifInterface);
+            mImageCropper.setImageBitmap(bitmap, mExifInterface);
+            mButtonOK.setEnabled(true);
+        }
+    }
+
+    /**
+     * Crops the selected region from the original file and stores the result.
+     */
+    private class CropTask extends AsyncTask<Void, Void, Boolean> {
+
+        private final Rect mRegion;
+
+        public CropTask(Rect region) {
+            mRegion = region;
+        }
+
+        @Override
+        protected Boolean doInBackground(Void... params) {
+            Bitmap bitmap;
+            try {
+                bitmap = RegionCropper.crop(mImageFile.getPath(), mRegion, mRotation, IMAGE_SIZE);
+            } catch (IOException e) {
+                return false;
+            }
+            if (bitmap == null) {
+                return false;
+            }
+            // The file is sent as is to the watch, so it's encoded only once
+            FileOutputStream outputStream = null;
+            try {
+                outputStream = openFileOutput(Constants.BACKGROUND_ASSET_FILE_NAME, MODE_PRIVATE);
+                boolean saved = BackgroundFormat
+                        .compress(ImageCropperActivity.this, bitmap, outputStream);
+                outputStream.close();
+                outputStream = null;
+                return saved;
+            } catch (IOException e) {
+                return false;
+            } finally {
+                bitmap.recycle();
+                if (outputStream != null) {
+                    try {
+                        outputStream.close();
+                    } catch (IOException e) {
+                    }
+                }
+            }
+        }
+
+        @Override
+        protected void onPostExecute(Boolean saved) {
+            mTask = null;
+            if (saved) {
+                Intent intent = new Intent();
+                intent.setData(
+                        Uri.fromFile(getFileStreamPath(Constants.BACKGROUND_ASSET_FILE_NAME)));
+                setResult(RESULT_OK, intent);
+            } else {
+                // The user didn't cancel, so the failure is reported here
+                Toast.makeText(ImageCropperActivity.this, R.string.error_opening_file,
+                        Toast.LENGTH_SHORT).show();
+                setResult(RESULT_CANCELED);
+            }
+            mImageFile.delete();
+            finish();
+        }
+    }
 }
@@ -0,0 +1,243 @@
+/*
+ * Copyright 2014 Julio García Muñoz (ZhDev)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.zhdev.wear.humantime;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * <p><code>ImageWorker</code> runs the file and image jobs of an activity (copying, decoding and
+ * encoding images) on a dedicated thread, so they never block the UI.</p>
+ *
+ * <p>The jobs run one at a time, in the order they're submitted. Their progress and result are
+ * delivered on the main thread. Shutting the worker down cancels every pending job and no more
+ * callbacks are delivered, so it must be done when the activity is destroyed.</p>
+ *
+ * @author Julio García Muñoz (ZhDev)
+ */
+public class ImageWorker {
+
+    // Files are copied in chunks of this size, so the progress can be reported
+    private static final long COPY_CHUNK_SIZE = 256 * 1024;
+
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    private volatile boolean mShutdown;
+
+    /**
+     * Queues a job. Must be called from the main thread. Jobs submitted after the worker has been
+     * shut down, like those of a callback that arrives after the activity is destroyed, are
+     * cancelled and never run.
+     *
+     * @param job the job to run
+     */
+    public <T> void submit(final Job<T> job) {
+        job.mWorker = this;
+        if (mShutdown) {
+            job.cancel();
+            return;
+        }
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (job.isCancelled()) {
+                    return;
+                }
+                T result = null;
+                IOException error = null;
+                try {
+                    result = job.doInBackground();
+                } catch (IOException e) {
+                    error = e;
+                }
+                final T finalResult = result;
+                final IOException finalError = error;
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (job.isCancelled()) {
+                            job.onCancelled(finalResult);
+                        } else if (finalError != null) {
+                            job.onFailed(finalError);
+                        } else {
+                            job.onDone(finalResult);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Cancels every pending job and stops the thread. Jobs already running are interrupted and
+     * their results discarded.
+     */
+    public void shutdown() {
+        mShutdown = true;
+        mExecutor.shutdownNow();
+    }
+
+    /**
+     * Copies a stream into a file. Streams of regular files, those with a known length, are copied
+     * with channel transfers, without going through a buffer on the heap. Any other stream, like a
+     * pipe, is read through a large buffer until its end, since a transfer can stop early on
+     * them.
+     *
+     * @param inputStream  the stream to copy, it isn't closed
+     * @param outputStream the file to copy to, it isn't closed
+     * @param length       the length of the stream or a negative number if it isn't known
+     * @param job          the job reporting the progress of the copy
+     * @throws IOException if the copy fails or the job is cancelled
+     */
+    public static void copy(InputStream inputStream, FileOutputStream outputStream, long length,
+            Job<?> job) throws IOException {
+        FileChannel destination = outputStream.getChannel();
+        if (length >= 0 && inputStream instanceof FileInputStream) {
+            FileChannel source = ((FileInputStream) inputStream).getChannel();
+            long position = 0;
+            long transferred;
+            do {
+                if (job.isCancelled()) {
+                    throw new IOException("Copy cancelled");
+                }
+                transferred = destination.transferFrom(source, position, COPY_CHUNK_SIZE);
+                position += transferred;
+                publishProgress(job, position, length);
+            } while (transferred > 0);
+        } else {
+            ReadableByteChannel source = Channels.newChannel(inputStream);
+            ByteBuffer buffer = ByteBuffer.allocate((int) COPY_CHUNK_SIZE);
+            long position = 0;
+            while (source.read(buffer) >= 0) {
+                if (job.isCancelled()) {
+                    throw new IOException("Copy cancelled");
+                }
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    position += destination.write(buffer);
+                }
+                buffer.clear();
+                publishProgress(job, position, length);
+            }
+        }
+    }
+
+    private static void publishProgress(Job<?> job, long position, long length) {
+        if (length > 0) {
+            job.publishProgress((int) Math.min(100, position * 100 / length));
+        }
+    }
+
+    /**
+     * A job run by an {@link ImageWorker}.
+     *
+     * @param <T> the type of the result
+     */
+    public abstract static class Job<T> {
+
+        private volatile boolean mCancelled;
+
+        private ImageWorker mWorker;
+
+        /**
+         * Does the work, on the worker thread.
+         *
+         * @return the result of the job
+         * @throws IOException if the job fails
+         */
+        protected abstract T doInBackground() throws IOException;
+
+        /**
+         * Called on the main thread with the progress published by the job.
+         *
+         * @param percent the progress from 0 to 100
+         */
+        protected void onProgress(int percent) {
+
+        }
+
+        /**
+         * Called on the main thread when the job finishes.
+         *
+         * @param result the result of the job
+         */
+        protected void onDone(T result) {
+
+        }
+
+        /**
+         * Called on the main thread when the job fails.
+         *
+         * @param e the cause of the failure
+         */
+        protected void onFailed(IOException e) {
+
+        }
+
+        /**
+         * Called on the main thread instead of the other callbacks when the job was cancelled
+         * while running. The result can be released here.
+         *
+         * @param result the result of the job, if it finished
+         */
+        protected void onCancelled(T result) {
+
+        }
+
+        /**
+         * Publishes the progress of the job, it can be called from the worker thread.
+         *
+         * @param percent the progress from 0 to 100
+         */
+        protected final void publishProgress(final int percent) {
+            mWorker.mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (!isCancelled()) {
+                        onProgress(percent);
+                    }
+                }
+            });
+        }
+
+        /**
+         * Cancels the job. If it's still queued it won't be run, otherwise its result is
+         * discarded.
+         */
+        public void cancel() {
+            mCancelled = true;
+        }
+
+        public boolean isCancelled() {
+            return mCancelled || (mWorker != null && mWorker.mShutdown);
+        }
+    }
+
+}
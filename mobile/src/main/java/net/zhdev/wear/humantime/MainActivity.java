@@ -16,8 +16,17 @@
 
 package net.zhdev.wear.humantime;
 
+import com.google.android.gms.common.api.ResultCallback;
 import com.google.android.gms.wearable.Asset;
+import com.google.android.gms.wearable.DataApi;
+import com.google.android.gms.wearable.DataEvent;
+import com.google.android.gms.wearable.DataEventBuffer;
+import com.google.android.gms.wearable.DataItem;
+import com.google.android.gms.wearable.DataItemBuffer;
 import com.google.android.gms.wearable.DataMap;
+import com.google.android.gms.wearable.DataMapItem;
+import com.google.android.gms.wearable.Node;
+import com.google.android.gms.wearable.NodeApi;
 import com.google.android.gms.wearable.PutDataMapRequest;
 import com.google.android.gms.wearable.PutDataRequest;
 import com.google.android.gms.wearable.Wearable;
@@ -34,10 +43,12 @@ import net.zhdev.wear.humantime.shared.Font;
 
 import android.app.DialogFragment;
 import android.content.Intent;
+import android.content.res.AssetFileDescriptor;
 import android.content.SharedPreferences;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.Color;
+import android.graphics.Point;
 import android.graphics.PorterDuff;
 import android.graphics.Typeface;
 import android.graphics.drawable.BitmapDrawable;
@@ -46,11 +57,14 @@ import android.graphics.drawable.Drawable;
 import android.graphics.drawable.LevelListDrawable;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.ParcelFileDescriptor;
 import android.util.Log;
 import android.util.TypedValue;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
+import android.view.Window;
 import android.widget.AdapterView;
 import android.widget.CompoundButton;
 import android.widget.ImageButton;
@@ -60,12 +74,22 @@ import android.widget.Switch;
 import android.widget.TextView;
 import android.widget.Toast;
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import me.grantland.widget.AutofitTextView;
 
@@ -77,7 +101,7 @@ import me.grantland.widget.AutofitTextView;
  */
 public class MainActivity extends WearApiActivity
         implements ColorPickerDialogFragment.ColorPickerDialogListener,
-        PositionPickerDialogFragment.PositionPickerDialogListener {
+        PositionPickerDialogFragment.PositionPickerDialogListener, DataApi.DataListener {
 
     private static final String DIALOG_BACKGROUND_COLOR_PICKER_TAG = "background";
 
@@ -89,6 +113,28 @@ public class MainActivity extends WearApiActivity
 
     private static final int REQUEST_CROP_IMAGE = 1;
 
+    private static final String BACKGROUND_VARIANTS_DIR = "background_variants";
+
+    private static final long CONFIG_SYNC_DELAY_MS = 500;
+
+    // The name the background image was stored with before the format became configurable
+    private static final String LEGACY_BACKGROUND_FILE_NAME = "background_image.png";
+
+    // The paths each setting was synced at before they were merged into the configuration
+    private static final String[] LEGACY_CONFIG_PATHS = {
+            "/background_color",
+            "/text_color",
+            "/text_style",
+            "/text_shadow",
+            "/text_size",
+            "/text_position",
+            "/text_case",
+            "/text_font",
+            "/date"
+    };
+
+    private static final String LEGACY_CONFIG_DELETED_KEY = "legacy_config_deleted";
+
     private SharedPreferences mSharedPreferences;
 
     private AutofitTextView mTextPreview;
@@ -117,20 +163,165 @@ public class MainActivity extends WearApiActivity
 
     private Switch mDateSwitch;
 
-    private static Asset createAssetFromBitmap(Bitmap bitmap) {
-        final ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
-        bitmap.compress(Bitmap.CompressFormat.PNG, 100, byteStream);
-        return Asset.createFromBytes(byteStream.toByteArray());
+    private final ImageWorker mImageWorker = new ImageWorker();
+
+    private ImageWorker.Job<Drawable> mBackgroundPreviewJob;
+
+    // The background last sent without its image, because the watches had it in their libraries
+    private String mHashOnlyBackgroundHash;
+
+    private String mHashOnlyBackgroundPath;
+
+    private final Handler mHandler = new Handler();
+
+    private boolean mConfigSyncPending;
+
+    // The requests made while the client was disconnected, by path, sent once it connects
+    private final Map<String, PutDataRequest> mPendingRequests =
+            new LinkedHashMap<String, PutDataRequest>();
+
+    // The descriptors of the assets of the kept requests, by path
+    private final Map<String, List<ParcelFileDescriptor>> mPendingDescriptors =
+            new HashMap<String, List<ParcelFileDescriptor>>();
+
+    private final Runnable mConfigSyncRunnable = new Runnable() {
+        @Override
+        public void run() {
+            syncConfig();
+        }
+    };
+
+    /**
+     * Encodes a bitmap into a file in the app storage and creates an asset backed by that file, so
+     * the encoded image is streamed to the Data Layer instead of being held in memory.
+     *
+     * @param bitmap      the image to encode
+     * @param variant     the background variant of the image, it determines its format
+     * @param name        the name of the file, unique within the current sync
+     * @param descriptors the list the descriptor opened for the asset is added to
+     * @return the asset or null if the image couldn't be stored
+     */
+    private Asset createAssetFromBitmap(Bitmap bitmap, String variant, String name,
+            List<ParcelFileDescriptor> descriptors) {
+        File file = new File(getBackgroundVariantsDir(), name);
+        FileOutputStream outputStream = null;
+        try {
+            outputStream = new FileOutputStream(file);
+            if (!BackgroundFormat.compress(this, bitmap, variant, outputStream)) {
+                return null;
+            }
+            outputStream.close();
+            outputStream = null;
+            return createAssetFromFile(file, descriptors);
+        } catch (IOException e) {
+            return null;
+        } finally {
+            if (outputStream != null) {
+                try {
+                    outputStream.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the directory the encoded background variants are stored in, created if needed
+     */
+    private File getBackgroundVariantsDir() {
+        File dir = new File(getFilesDir(), BACKGROUND_VARIANTS_DIR);
+        if (!dir.exists()) {
+            dir.mkdirs();
+        }
+        return dir;
+    }
+
+    /**
+     * Deletes the variants encoded for a previous sync. The assets already created keep their
+     * file descriptors open, so the files can be safely deleted.
+     */
+    private void deleteBackgroundVariants() {
+        File[] files = getBackgroundVariantsDir().listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * Computes the hash that identifies a background in the library of the watches.
+     *
+     * @param file the encoded background image
+     * @return the SHA-1 of the content of the file, in hexadecimal
+     * @throws IOException if the file can't be read
+     */
+    private static String computeHash(File file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 isn't available", e);
+        }
+        InputStream inputStream = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[64 * 1024];
+            int bytes;
+            while ((bytes = inputStream.read(buffer)) > 0) {
+                digest.update(buffer, 0, bytes);
+            }
+        } finally {
+            inputStream.close();
+        }
+        StringBuilder hash = new StringBuilder();
+        for (byte b : digest.digest()) {
+            hash.append(String.format("%02x", b));
+        }
+        return hash.toString();
+    }
+
+    /**
+     * Creates an asset that reads an already encoded file, so it doesn't have to be decoded and
+     * encoded again. The descriptor must be closed once the data item has been put.
+     *
+     * @param file        the encoded file
+     * @param descriptors the list the descriptor opened for the asset is added to
+     */
+    private static Asset createAssetFromFile(File file, List<ParcelFileDescriptor> descriptors)
+            throws FileNotFoundException {
+        ParcelFileDescriptor descriptor = ParcelFileDescriptor.open(file,
+                ParcelFileDescriptor.MODE_READ_ONLY);
+        descriptors.add(descriptor);
+        return Asset.createFromFd(descriptor);
+    }
+
+    private static void closeDescriptors(List<ParcelFileDescriptor> descriptors) {
+        if (descriptors == null) {
+            return;
+        }
+        for (ParcelFileDescriptor descriptor : descriptors) {
+            try {
+                descriptor.close();
+            } catch (IOException e) {
+            }
+        }
+        descriptors.clear();
     }
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        requestWindowFeature(Window.FEATURE_PROGRESS);
         setContentView(R.layout.activity_main);
         setTitle(R.string.title_activity_main);
 
         mSharedPreferences = getSharedPreferences(Constants.PREFS_NAME, MODE_PRIVATE);
 
+        File legacyImage = getFileStreamPath(LEGACY_BACKGROUND_FILE_NAME);
+        if (legacyImage.exists()) {
+            legacyImage.renameTo(getFileStreamPath(Constants.BACKGROUND_ASSET_FILE_NAME));
+        }
+
         mTextPreview = (AutofitTextView) findViewById(R.id.text_preview);
         mDatePreview = (TextView) findViewById(R.id.date_preview);
         mContainerPreview = (LinearLayout) findViewById(R.id.container_preview);
@@ -192,7 +383,7 @@ public class MainActivity extends WearApiActivity
                     float textSize = ((SizeAdapter.Size) parent.getItemAtPosition(position))
                             .getSize();
                     storePreference(Constants.TEXT_SIZE_KEY, textSize);
-                    syncData(Constants.TEXT_SIZE_PATH, Constants.TEXT_SIZE_KEY, textSize);
+                    scheduleConfigSync();
                     loadTextSizePreview(false);
                 }
             }
@@ -222,7 +413,7 @@ public class MainActivity extends WearApiActivity
                     int style = ((StyleAdapter.Style) parent.getItemAtPosition(position))
                             .getTextStyle();
                     storePreference(Constants.TEXT_STYLE_KEY, style);
-                    syncData(Constants.TEXT_STYLE_PATH, Constants.TEXT_STYLE_KEY, style);
+                    scheduleConfigSync();
                     loadTextStyleAndFontPreview(false, false);
                 }
             }
@@ -267,7 +458,7 @@ public class MainActivity extends WearApiActivity
                     int textCase = ((CaseAdapter.Case) parent.getItemAtPosition(position))
                             .getCase();
                     storePreference(Constants.TEXT_CASE_KEY, textCase);
-                    syncData(Constants.TEXT_CASE_PATH, Constants.TEXT_CASE_KEY, textCase);
+                    scheduleConfigSync();
                     loadTextCasePreview(false);
                 }
             }
@@ -295,10 +486,9 @@ public class MainActivity extends WearApiActivity
                 } else {
                     // Reset the style because not all custom fonts have them
                     storePreference(Constants.TEXT_STYLE_KEY, Typeface.NORMAL);
-                    syncData(Constants.TEXT_STYLE_PATH, Constants.TEXT_STYLE_KEY, Typeface.NORMAL);
                     String fontCode = ((Font) parent.getItemAtPosition(position)).getFontCode();
                     storePreference(Constants.TEXT_FONT_KEY, fontCode);
-                    syncData(Constants.TEXT_FONT_PATH, Constants.TEXT_FONT_KEY, fontCode);
+                    scheduleConfigSync();
                     loadTextStyleAndFontPreview(true, false);
                 }
             }
@@ -322,7 +512,7 @@ public class MainActivity extends WearApiActivity
             @Override
             public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
                 storePreference(Constants.TEXT_SHADOW_KEY, isChecked);
-                syncData(Constants.TEXT_SHADOW_PATH, Constants.TEXT_SHADOW_KEY, isChecked);
+                scheduleConfigSync();
                 loadTextShadowPreview(false);
             }
         });
@@ -332,7 +522,7 @@ public class MainActivity extends WearApiActivity
             @Override
             public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
                 storePreference(Constants.DATE_KEY, isChecked);
-                syncData(Constants.DATE_PATH, Constants.DATE_KEY, isChecked);
+                scheduleConfigSync();
                 loadDatePreview(false);
             }
         });
@@ -342,55 +532,16 @@ public class MainActivity extends WearApiActivity
     protected void onActivityResult(int requestCode, int resultCode, Intent data) {
         if (resultCode == RESULT_OK) {
             Uri imageUri = data.getData();
-            InputStream inputStream = null;
             switch (requestCode) {
                 case REQUEST_PICK_IMAGE: // An image has been picked, open the cropper
-                    String fileName = Integer.toString(imageUri.toString().hashCode());
-                    File file = new File(getCacheDir(), fileName);
-                    FileOutputStream outputStream = null;
-                    try {
-                        // The image might come from the network or a database and a local file is
-                        // needed to extract the Exif information
-                        inputStream = getContentResolver().openInputStream(imageUri);
-                        outputStream = new FileOutputStream(file);
-                        byte[] buffer = new byte[4096];
-                        int bytes;
-                        while ((bytes = inputStream.read(buffer)) > 0) {
-                            outputStream.write(buffer, 0, bytes);
-                        }
-                        Intent intent = new Intent(this, ImageCropperActivity.class);
-                        intent.putExtra(ImageCropperActivity.EXTRA_CACHED_IMAGE_PATH,
-                                file.getAbsolutePath());
-                        startActivityForResult(intent, REQUEST_CROP_IMAGE);
-                    } catch (IOException e) {
-                        Toast.makeText(this, R.string.error_opening_file, Toast.LENGTH_SHORT)
-                                .show();
-                    } finally {
-                        try {
-                            if (inputStream != null) {
-                                inputStream.close();
-                            }
-                            if (outputStream != null) {
-                                outputStream.close();
-                            }
-                        } catch (IOException e) {
-                        }
-                    }
+                    copyPickedImage(imageUri);
                     break;
                 case REQUEST_CROP_IMAGE: // The image has been cropped, open the cropper
-                    try {
-                        inputStream = getContentResolver().openInputStream(imageUri);
-                        Bitmap bitmap = BitmapFactory.decodeStream(inputStream);
-                        storePreference(Constants.BACKGROUND_TYPE_KEY,
-                                Constants.BACKGROUND_TYPE_IMAGE);
-                        syncData(Constants.BACKGROUND_ASSET_PATH, Constants.BACKGROUND_ASSET_KEY,
-                                createAssetFromBitmap(bitmap));
-                        deleteData(Constants.BACKGROUND_COLOR_PATH);
-                        loadBackgroundPreview();
-                    } catch (FileNotFoundException e) {
-                        Log.w("Human Time",
-                                "The background file was created, but it can't be found");
-                    }
+                    storePreference(Constants.BACKGROUND_TYPE_KEY,
+                            Constants.BACKGROUND_TYPE_IMAGE);
+                    syncBackground(imageUri.getPath(), false);
+                    scheduleConfigSync();
+                    loadBackgroundPreview();
                     break;
                 default:
                     super.onActivityResult(requestCode, resultCode, data);
@@ -401,9 +552,130 @@ public class MainActivity extends WearApiActivity
         }
     }
 
+    @Override
+    protected void onStop() {
+        // A pending sync is sent before the client is disconnected, or kept for the next
+        // connection if it's already lost
+        if (mConfigSyncPending) {
+            syncConfig();
+        }
+        if (getGoogleApiClient().isConnected()) {
+            Wearable.DataApi.removeListener(getGoogleApiClient(), this);
+        }
+        super.onStop();
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        mImageWorker.shutdown();
+        for (List<ParcelFileDescriptor> descriptors : mPendingDescriptors.values()) {
+            closeDescriptors(descriptors);
+        }
+        mPendingDescriptors.clear();
+    }
+
+    /**
+     * Copies a picked image to the cache in the worker and opens the cropper when it's done. The
+     * image might come from the network or a database and a local file is needed to extract the
+     * Exif information.
+     *
+     * @param imageUri the URI of the picked image
+     */
+    private void copyPickedImage(final Uri imageUri) {
+        final File file = new File(getCacheDir(),
+                Integer.toString(imageUri.toString().hashCode()));
+        setProgressBarVisibility(true);
+        mImageWorker.submit(new ImageWorker.Job<File>() {
+            @Override
+            protected File doInBackground() throws IOException {
+                long length = -1;
+                AssetFileDescriptor descriptor = null;
+                try {
+                    descriptor = getContentResolver().openAssetFileDescriptor(imageUri, "r");
+                    if (descriptor != null) {
+                        length = descriptor.getLength();
+                    }
+                } catch (FileNotFoundException e) {
+                    // Not every provider can open a descriptor, the copy goes on without progress
+                } finally {
+                    if (descriptor != null) {
+                        descriptor.close();
+                    }
+                }
+                InputStream inputStream = null;
+                FileOutputStream outputStream = null;
+                try {
+                    inputStream = getContentResolver().openInputStream(imageUri);
+                    if (inputStream == null) {
+                        throw new FileNotFoundException(imageUri.toString());
+                    }
+                    outputStream = new FileOutputStream(file);
+                    ImageWorker.copy(inputStream, outputStream, length, this);
+                } finally {
+                    try {
+                        if (inputStream != null) {
+                            inputStream.close();
+                        }
+                        if (outputStream != null) {
+                            outputStream.close();
+                        }
+                    } catch (IOException e) {
+                    }
+                }
+                return file;
+            }
+
+            @Override
+            protected void onProgress(int percent) {
+                setProgress(percent * (Window.PROGRESS_END - Window.PROGRESS_START) / 100);
+            }
+
+            @Override
+            protected void onDone(File result) {
+                setProgressBarVisibility(false);
+                Intent intent = new Intent(MainActivity.this, ImageCropperActivity.class);
+                intent.putExtra(ImageCropperActivity.EXTRA_CACHED_IMAGE_PATH,
+                        result.getAbsolutePath());
+                startActivityForResult(intent, REQUEST_CROP_IMAGE);
+            }
+
+            @Override
+            protected void onFailed(IOException e) {
+                setProgressBarVisibility(false);
+                Toast.makeText(MainActivity.this, R.string.error_opening_file,
+                        Toast.LENGTH_SHORT).show();
+            }
+        });
+    }
+
     @Override
     public void onConnected(Bundle connectionHint) {
         setElementsEnabled(true);
+        Wearable.DataApi.addListener(getGoogleApiClient(), this);
+        Map<String, PutDataRequest> requests =
+                new LinkedHashMap<String, PutDataRequest>(mPendingRequests);
+        mPendingRequests.clear();
+        for (Map.Entry<String, PutDataRequest> entry : requests.entrySet()) {
+            putDataItem(entry.getValue(), mPendingDescriptors.remove(entry.getKey()));
+        }
+    }
+
+    @Override
+    public void onDataChanged(DataEventBuffer dataEvents) {
+        for (DataEvent event : dataEvents) {
+            DataItem dataItem = event.getDataItem();
+            if (event.getType() != DataEvent.TYPE_CHANGED || mHashOnlyBackgroundHash == null
+                    || !Constants.BACKGROUND_LIBRARY_PATH.equals(dataItem.getUri().getPath())) {
+                continue;
+            }
+            DataMap dataMap = DataMapItem.fromDataItem(dataItem).getDataMap();
+            if (mHashOnlyBackgroundHash.equals(
+                    dataMap.getString(Constants.BACKGROUND_MISSING_KEY))) {
+                // A watch evicted the image before receiving the hash, it's sent again in full
+                syncBackground(mHashOnlyBackgroundPath, true);
+            }
+        }
     }
 
     @Override
@@ -473,8 +745,6 @@ public class MainActivity extends WearApiActivity
                 || Constants.TEXT_POSITION_KEY.equals(key)
                 || Constants.TEXT_STYLE_KEY.equals(key)) {
             editor.putInt(key, (Integer) value);
-        } else if (Constants.BACKGROUND_ASSET_LAST_CHANGED_KEY.equals(key)) {
-            editor.putLong(key, (Long) value);
         } else if (Constants.TEXT_SHADOW_KEY.equals(key)
                 || Constants.DATE_KEY.equals(key)) {
             editor.putBoolean(key, (Boolean) value);
@@ -487,57 +757,331 @@ public class MainActivity extends WearApiActivity
     }
 
     /**
-     * Syncs a key/value pair at the given path inside Google Play services Wearable Data Layer.
-     *
-     * @param path  the path where tha data will be stored
-     * @param key   the key referencing the data
-     * @param value the value of the data
+     * Schedules syncing the settings with the watches. Changes made in quick succession are
+     * coalesced into a single sync.
      */
-    private void syncData(String path, String key, Object value) {
-        PutDataMapRequest putDataMapRequest = PutDataMapRequest.create(path);
+    private void scheduleConfigSync() {
+        mConfigSyncPending = true;
+        mHandler.removeCallbacks(mConfigSyncRunnable);
+        mHandler.postDelayed(mConfigSyncRunnable, CONFIG_SYNC_DELAY_MS);
+    }
+
+    /**
+     * Syncs every stored setting in a single data map at {@link Constants#CONFIG_PATH}, along with
+     * the version of its format. The watches read the whole configuration at once.
+     */
+    private void syncConfig() {
+        mConfigSyncPending = false;
+        mHandler.removeCallbacks(mConfigSyncRunnable);
+        PutDataMapRequest putDataMapRequest = PutDataMapRequest.create(Constants.CONFIG_PATH);
         DataMap dataMap = putDataMapRequest.getDataMap();
-        if (value instanceof Integer) {
-            dataMap.putInt(key, (Integer) value);
-        } else if (value instanceof Boolean) {
-            dataMap.putBoolean(key, (Boolean) value);
-        } else if (value instanceof Asset) {
-            dataMap.putAsset(key, (Asset) value);
-        } else if (value instanceof Float) {
-            dataMap.putFloat(key, (Float) value);
-        } else if (value instanceof String) {
-            dataMap.putString(key, (String) value);
+        dataMap.putInt(Constants.CONFIG_VERSION_KEY, Constants.CONFIG_VERSION);
+        Map<String, ?> values = mSharedPreferences.getAll();
+        for (String key : Constants.CONFIG_KEYS) {
+            Object value = values.get(key);
+            if (value instanceof Integer) {
+                dataMap.putInt(key, (Integer) value);
+            } else if (value instanceof Boolean) {
+                dataMap.putBoolean(key, (Boolean) value);
+            } else if (value instanceof Float) {
+                dataMap.putFloat(key, (Float) value);
+            } else if (value instanceof String) {
+                dataMap.putString(key, (String) value);
+            }
+        }
+        putDataItem(putDataMapRequest.asPutDataRequest(), null);
+        deleteLegacyConfig();
+    }
+
+    /**
+     * Deletes the data items each setting was synced in before they were merged into
+     * {@link Constants#CONFIG_PATH}. It's only done once, after the configuration has been put.
+     */
+    private void deleteLegacyConfig() {
+        if (mSharedPreferences.getBoolean(LEGACY_CONFIG_DELETED_KEY, false)
+                || !getGoogleApiClient().isConnected()) {
+            return;
+        }
+        for (String path : LEGACY_CONFIG_PATHS) {
+            deleteData(path);
+        }
+        // The time the background was last changed was only stored to make its item change
+        mSharedPreferences.edit().remove("background_last_changed")
+                .putBoolean(LEGACY_CONFIG_DELETED_KEY, true).apply();
+    }
+
+    /**
+     * Puts a data item if the client is connected. Otherwise the request is kept and sent once the
+     * client connects again, replacing any request kept before for the same path.
+     *
+     * @param request     the request to send
+     * @param descriptors the descriptors of the assets of the request, closed once the item has
+     *                    been put or the request is replaced, it can be null
+     */
+    private void putDataItem(PutDataRequest request,
+            final List<ParcelFileDescriptor> descriptors) {
+        String path = request.getUri().getPath();
+        mPendingRequests.remove(path);
+        closeDescriptors(mPendingDescriptors.remove(path));
+        if (getGoogleApiClient().isConnected()) {
+            Wearable.DataApi.putDataItem(getGoogleApiClient(), request)
+                    .setResultCallback(new ResultCallback<DataApi.DataItemResult>() {
+                        @Override
+                        public void onResult(DataApi.DataItemResult dataItemResult) {
+                            closeDescriptors(descriptors);
+                        }
+                    });
         } else {
-            throw new IllegalArgumentException("Invalid value: " + value);
+            mPendingRequests.put(path, request);
+            if (descriptors != null) {
+                mPendingDescriptors.put(path, descriptors);
+            }
+        }
+    }
+
+    /**
+     * Syncs the background image along with the variants prepared for the display of every
+     * connected watch that has published its size. The watches then pick the assets that match
+     * their display.
+     * The image is only decoded if there are variants to prepare, and the variants are decoded
+     * and encoded in the worker.
+     *
+     * <p>The image is identified by the hash of its content. When every connected watch has it in
+     * its background library, only the hash is sent and the watches select the stored image. If a
+     * watch has evicted it in the meantime, it publishes the hash as missing and the image is sent
+     * again along with its assets.</p>
+     *
+     * @param imagePath  the path of the background image
+     * @param sendAssets true to send the image even if the watches have it in their libraries
+     */
+    private void syncBackground(final String imagePath, final boolean sendAssets) {
+        mHashOnlyBackgroundHash = null;
+        mHashOnlyBackgroundPath = null;
+        Wearable.NodeApi.getConnectedNodes(getGoogleApiClient())
+                .setResultCallback(new ResultCallback<NodeApi.GetConnectedNodesResult>() {
+                    @Override
+                    public void onResult(NodeApi.GetConnectedNodesResult result) {
+                        Set<String> nodes = new HashSet<String>();
+                        if (result.getStatus().isSuccess()) {
+                            for (Node node : result.getNodes()) {
+                                nodes.add(node.getId());
+                            }
+                        } else {
+                            Log.w("Human Time", "The connected watches couldn't be read");
+                        }
+                        syncBackground(imagePath, sendAssets, nodes);
+                    }
+                });
+    }
+
+    /**
+     * Reads the display sizes and background libraries published by the connected watches and
+     * syncs the background for them. The items left by watches that aren't connected anymore are
+     * ignored, so they don't add variants for displays that aren't there or force the image to
+     * be sent. If they can't be read, the generic image is sent.
+     *
+     * @param imagePath  the path of the background image
+     * @param sendAssets true to send the image even if the watches have it in their libraries
+     * @param nodes      the IDs of the connected watches
+     */
+    private void syncBackground(final String imagePath, final boolean sendAssets,
+            final Set<String> nodes) {
+        Wearable.DataApi.getDataItems(getGoogleApiClient())
+                .setResultCallback(new ResultCallback<DataItemBuffer>() {
+                    @Override
+                    public void onResult(DataItemBuffer dataItems) {
+                        Set<Point> sizes = new LinkedHashSet<Point>();
+                        // The hashes stored by each watch, by node ID
+                        Map<String, Set<String>> libraries = new HashMap<String, Set<String>>();
+                        if (!dataItems.getStatus().isSuccess()) {
+                            Log.w("Human Time", "The watch displays couldn't be read");
+                            nodes.clear();
+                        }
+                        for (DataItem dataItem : dataItems) {
+                            String path = dataItem.getUri().getPath();
+                            String node = dataItem.getUri().getHost();
+                            if (!nodes.contains(node)) {
+                                continue;
+                            }
+                            DataMap dataMap = DataMapItem.fromDataItem(dataItem).getDataMap();
+                            if (Constants.DISPLAY_PATH.equals(path)) {
+                                int width = dataMap.getInt(Constants.DISPLAY_WIDTH_KEY);
+                                int height = dataMap.getInt(Constants.DISPLAY_HEIGHT_KEY);
+                                if (width > 0 && height > 0) {
+                                    sizes.add(new Point(width, height));
+                                }
+                                if (!libraries.containsKey(node)) {
+                                    libraries.put(node, new HashSet<String>());
+                                }
+                            } else if (!sendAssets
+                                    && Constants.BACKGROUND_LIBRARY_PATH.equals(path)) {
+                                Set<String> hashes = new HashSet<String>();
+                                List<String> stored = dataMap
+                                        .getStringArrayList(Constants.BACKGROUND_LIBRARY_KEY);
+                                if (stored != null) {
+                                    hashes.addAll(stored);
+                                }
+                                libraries.put(node, hashes);
+                            }
+                        }
+                        dataItems.release();
+                        submitBackgroundSync(imagePath, sizes, libraries);
+                    }
+                });
+    }
+
+    /**
+     * Prepares the background request in the worker and puts it once it's ready.
+     */
+    private void submitBackgroundSync(final String imagePath, final Set<Point> sizes,
+            final Map<String, Set<String>> libraries) {
+        final List<ParcelFileDescriptor> descriptors = new ArrayList<ParcelFileDescriptor>();
+        mImageWorker.submit(new ImageWorker.Job<PutDataRequest>() {
+            @Override
+            protected PutDataRequest doInBackground() throws IOException {
+                return createBackgroundRequest(imagePath, sizes, libraries, descriptors);
+            }
+
+            @Override
+            protected void onDone(PutDataRequest result) {
+                if (result.getAssets().isEmpty()) {
+                    mHashOnlyBackgroundHash = DataMap.fromByteArray(result.getData())
+                            .getString(Constants.BACKGROUND_HASH_KEY);
+                    mHashOnlyBackgroundPath = imagePath;
+                }
+                // The activity might have been stopped while the request was prepared
+                putDataItem(result, descriptors);
+            }
+
+            @Override
+            protected void onFailed(IOException e) {
+                closeDescriptors(descriptors);
+                Log.w("Human Time", "The background couldn't be synced", e);
+            }
+
+            @Override
+            protected void onCancelled(PutDataRequest result) {
+                closeDescriptors(descriptors);
+            }
+        });
+    }
+
+    /**
+     * Creates the request that syncs the background image and its variants. It decodes and
+     * encodes images, so it must not be called from the main thread.
+     *
+     * @param imagePath   the path of the background image
+     * @param sizes       the sizes of the displays of the watches
+     * @param libraries   the hashes in the background library of each watch, by node ID
+     * @param descriptors the list the descriptors opened for the assets are added to
+     */
+    private PutDataRequest createBackgroundRequest(String imagePath, Set<Point> sizes,
+            Map<String, Set<String>> libraries, List<ParcelFileDescriptor> descriptors)
+            throws IOException {
+        File file = new File(imagePath);
+        String hash = computeHash(file);
+        PutDataMapRequest putDataMapRequest = PutDataMapRequest
+                .create(Constants.BACKGROUND_ASSET_PATH);
+        DataMap dataMap = putDataMapRequest.getDataMap();
+        dataMap.putString(Constants.BACKGROUND_HASH_KEY, hash);
+        boolean stored = !libraries.isEmpty();
+        for (Set<String> hashes : libraries.values()) {
+            stored &= hashes.contains(hash);
+        }
+        if (stored) {
+            return putDataMapRequest.asPutDataRequest();
+        }
+        // The generic image is used by watches that haven't published their size
+        dataMap.putAsset(Constants.BACKGROUND_ASSET_KEY, createAssetFromFile(file, descriptors));
+        deleteBackgroundVariants();
+        if (!sizes.isEmpty()) {
+            Bitmap bitmap = BitmapFactory.decodeFile(imagePath);
+            if (bitmap != null) {
+                for (Point size : sizes) {
+                    putBackgroundVariants(dataMap, bitmap, size.x, size.y, descriptors);
+                }
+                bitmap.recycle();
+            }
+        }
+        return putDataMapRequest.asPutDataRequest();
+    }
+
+    private void putBackgroundVariants(DataMap dataMap, Bitmap bitmap, int width,
+            int height, List<ParcelFileDescriptor> descriptors) {
+        Bitmap sized = BackgroundVariants.createSized(bitmap, width, height);
+        putBackgroundVariant(dataMap, sized, Constants.BACKGROUND_VARIANT_DEFAULT, width, height,
+                descriptors);
+
+        Bitmap dimmed = BackgroundVariants.createDimmed(sized);
+        putBackgroundVariant(dataMap, dimmed, Constants.BACKGROUND_VARIANT_DIMMED, width, height,
+                descriptors);
+        dimmed.recycle();
+
+        Bitmap ambient = BackgroundVariants.createAmbient(sized);
+        putBackgroundVariant(dataMap, ambient, Constants.BACKGROUND_VARIANT_AMBIENT, width,
+                height, descriptors);
+        ambient.recycle();
+        sized.recycle();
+    }
+
+    private void putBackgroundVariant(DataMap dataMap, Bitmap bitmap, String variant, int width,
+            int height, List<ParcelFileDescriptor> descriptors) {
+        String key = Constants.getBackgroundAssetKey(variant, width, height);
+        Asset asset = createAssetFromBitmap(bitmap, variant, key, descriptors);
+        if (asset != null) {
+            dataMap.putAsset(key, asset);
         }
-        PutDataRequest request = putDataMapRequest.asPutDataRequest();
-        Wearable.DataApi.putDataItem(getGoogleApiClient(), request);
     }
 
     private void deleteData(String path) {
+        // A request kept while disconnected would bring the item back
+        mPendingRequests.remove(path);
+        closeDescriptors(mPendingDescriptors.remove(path));
         PutDataMapRequest putDataMapRequest = PutDataMapRequest.create(path);
         Wearable.DataApi.deleteDataItems(getGoogleApiClient(), putDataMapRequest.getUri());
     }
 
+    /**
+     * Shows the current background in the preview. Images are decoded in the worker, a pending
+     * decode is cancelled when the background changes again.
+     */
     private void loadBackgroundPreview() {
+        if (mBackgroundPreviewJob != null) {
+            mBackgroundPreviewJob.cancel();
+            mBackgroundPreviewJob = null;
+        }
         int backgroundType = mSharedPreferences
                 .getInt(Constants.BACKGROUND_TYPE_KEY, Constants.BACKGROUND_TYPE_COLOR);
-        Drawable drawable = null;
-        int color;
-        if (backgroundType == Constants.BACKGROUND_TYPE_COLOR) {
-            color = mSharedPreferences.getInt(Constants.BACKGROUND_COLOR_KEY,
-                    getResources().getColor(android.R.color.holo_blue_dark));
-            drawable = new ColorDrawable(color);
-        } else if (backgroundType == Constants.BACKGROUND_TYPE_IMAGE) {
-            try {
-                InputStream inputStream = openFileInput(Constants.BACKGROUND_ASSET_FILE_NAME);
-                drawable = new BitmapDrawable(getResources(), inputStream);
-            } catch (FileNotFoundException e) {
-                color = mSharedPreferences.getInt(Constants.BACKGROUND_COLOR_KEY,
-                        getResources().getColor(android.R.color.holo_blue_dark));
-                drawable = new ColorDrawable(color);
-            }
+        final int color = mSharedPreferences.getInt(Constants.BACKGROUND_COLOR_KEY,
+                getResources().getColor(android.R.color.holo_blue_dark));
+        if (backgroundType == Constants.BACKGROUND_TYPE_IMAGE) {
+            mBackgroundPreviewJob = new ImageWorker.Job<Drawable>() {
+                @Override
+                protected Drawable doInBackground() throws IOException {
+                    InputStream inputStream = openFileInput(Constants.BACKGROUND_ASSET_FILE_NAME);
+                    try {
+                        return new BitmapDrawable(getResources(), inputStream);
+                    } finally {
+                        inputStream.close();
+                    }
+                }
+
+                @Override
+                protected void onDone(Drawable result) {
+                    mBackgroundPreviewJob = null;
+                    mContainerPreview.setBackground(result);
+                }
+
+                @Override
+                protected void onFailed(IOException e) {
+                    mBackgroundPreviewJob = null;
+                    mContainerPreview.setBackground(new ColorDrawable(color));
+                }
+            };
+            mImageWorker.submit(mBackgroundPreviewJob);
+        } else {
+            mContainerPreview.setBackground(new ColorDrawable(color));
         }
-        mContainerPreview.setBackground(drawable);
     }
 
     private void loadTextCasePreview(boolean updateSelector) {
@@ -695,12 +1239,12 @@ public class MainActivity extends WearApiActivity
         if (DIALOG_BACKGROUND_COLOR_PICKER_TAG.equals(tag)) {
             storePreference(Constants.BACKGROUND_TYPE_KEY, Constants.BACKGROUND_TYPE_COLOR);
             storePreference(Constants.BACKGROUND_COLOR_KEY, color);
-            syncData(Constants.BACKGROUND_COLOR_PATH, Constants.BACKGROUND_COLOR_KEY, color);
+            scheduleConfigSync();
             deleteData(Constants.BACKGROUND_ASSET_PATH);
             loadBackgroundPreview();
         } else if (DIALOG_TEXT_COLOR_PICKER_TAG.equals(tag)) {
             storePreference(Constants.TEXT_COLOR_KEY, color);
-            syncData(Constants.TEXT_COLOR_PATH, Constants.TEXT_COLOR_KEY, color);
+            scheduleConfigSync();
             loadTextColorPreview();
         }
     }
@@ -708,7 +1252,7 @@ public class MainActivity extends WearApiActivity
     @Override
     public void onPositionPicked(DialogFragment dialog, int position) {
         storePreference(Constants.TEXT_POSITION_KEY, position);
-        syncData(Constants.TEXT_POSITION_PATH, Constants.TEXT_POSITION_KEY, position);
+        scheduleConfigSync();
         loadTextPositionPreview();
     }
 }
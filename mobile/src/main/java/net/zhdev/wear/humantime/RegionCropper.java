@@ -0,0 +1,194 @@
+/*
+ * Copyright 2014 Julio García Muñoz (ZhDev)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.zhdev.wear.humantime;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Matrix;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.media.ExifInterface;
+
+import java.io.IOException;
+
+/**
+ * <p><code>RegionCropper</code> crops an image file decoding only the selected rectangle, at the
+ * sample size closest to the output size, so the whole image is never loaded in memory. The
+ * formats the region decoder doesn't support, like GIF or BMP, are decoded whole at that sample
+ * size and cropped afterwards.</p>
+ *
+ * <p>The rectangle is selected on a preview of the image that is downsampled and rotated as
+ * indicated by its Exif orientation, so it has to be mapped back to the coordinates of the
+ * file.</p>
+ *
+ * @author Julio García Muñoz (ZhDev)
+ */
+public final class RegionCropper {
+
+    private RegionCropper() {
+
+    }
+
+    /**
+     * @param exifInterface the Exif information of the image, it can be null
+     * @return the clockwise rotation in degrees needed to display the image upright
+     */
+    public static int getRotation(ExifInterface exifInterface) {
+        if (exifInterface == null) {
+            return 0;
+        }
+        int orientation = exifInterface.getAttributeInt(ExifInterface.TAG_ORIENTATION,
+                ExifInterface.ORIENTATION_NORMAL);
+        switch (orientation) {
+            case ExifInterface.ORIENTATION_ROTATE_90:
+                return 90;
+            case ExifInterface.ORIENTATION_ROTATE_180:
+                return 180;
+            case ExifInterface.ORIENTATION_ROTATE_270:
+                return 270;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * Maps a rectangle selected on the preview to the coordinates of the image file.
+     *
+     * @param crop         the rectangle in the coordinates of the preview
+     * @param sampleSize   the sample size the preview was decoded with
+     * @param rotation     the clockwise rotation applied to the preview
+     * @param sourceWidth  the width of the image file
+     * @param sourceHeight the height of the image file
+     * @return the rectangle in the coordinates of the image file
+     */
+    public static Rect mapToSource(RectF crop, int sampleSize, int rotation, int sourceWidth,
+            int sourceHeight) {
+        float left = crop.left * sampleSize;
+        float top = crop.top * sampleSize;
+        float right = crop.right * sampleSize;
+        float bottom = crop.bottom * sampleSize;
+        RectF source;
+        switch (rotation) {
+            case 90:
+                source = new RectF(top, sourceHeight - right, bottom, sourceHeight - left);
+                break;
+            case 180:
+                source = new RectF(sourceWidth - right, sourceHeight - bottom, sourceWidth - left,
+                        sourceHeight - top);
+                break;
+            case 270:
+                source = new RectF(sourceWidth - bottom, left, sourceWidth - top, right);
+                break;
+            default:
+                source = new RectF(left, top, right, bottom);
+                break;
+        }
+        Rect rect = new Rect();
+        source.round(rect);
+        if (!rect.intersect(0, 0, sourceWidth, sourceHeight)) {
+            throw new IllegalArgumentException("The crop is outside of the image");
+        }
+        return rect;
+    }
+
+    /**
+     * Decodes a region of an image file and scales it to a square of the given size.
+     *
+     * @param imagePath the path of the image file
+     * @param region    the region in the coordinates of the file
+     * @param rotation  the clockwise rotation to apply to the region
+     * @param size      the size of the result in pixels
+     * @return the cropped image or null if it couldn't be decoded
+     * @throws IOException if the file can't be read
+     */
+    public static Bitmap crop(String imagePath, Rect region, int rotation, int size)
+            throws IOException {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = 1;
+        int shortSide = Math.min(region.width(), region.height());
+        while (shortSide / (options.inSampleSize * 2) >= size) {
+            options.inSampleSize *= 2;
+        }
+        BitmapRegionDecoder decoder;
+        try {
+            decoder = BitmapRegionDecoder.newInstance(imagePath, false);
+        } catch (IOException e) {
+            // The region decoder only supports some formats
+            decoder = null;
+        }
+        Bitmap decoded;
+        if (decoder != null) {
+            try {
+                decoded = decoder.decodeRegion(region, options);
+            } finally {
+                decoder.recycle();
+            }
+        } else {
+            decoded = decodeSampledRegion(imagePath, region, options);
+        }
+        if (decoded == null) {
+            return null;
+        }
+
+        Matrix matrix = new Matrix();
+        matrix.postRotate(rotation);
+        float scale = (float) size / Math.min(decoded.getWidth(), decoded.getHeight());
+        matrix.postScale(scale, scale);
+        Bitmap result = Bitmap.createBitmap(decoded, 0, 0, decoded.getWidth(),
+                decoded.getHeight(), matrix, true);
+        if (result != decoded) {
+            decoded.recycle();
+        }
+        if (result.getWidth() != size || result.getHeight() != size) {
+            // Rounding might leave the result a pixel off
+            Bitmap scaled = Bitmap.createScaledBitmap(result, size, size, true);
+            if (scaled != result) {
+                result.recycle();
+            }
+            result = scaled;
+        }
+        return result;
+    }
+
+    /**
+     * Decodes a whole image file at a sample size and crops a region from it.
+     *
+     * @return the region or null if the image couldn't be decoded
+     */
+    private static Bitmap decodeSampledRegion(String imagePath, Rect region,
+            BitmapFactory.Options options) {
+        Bitmap sampled = BitmapFactory.decodeFile(imagePath, options);
+        if (sampled == null) {
+            return null;
+        }
+        int sampleSize = options.inSampleSize;
+        Rect rect = new Rect(region.left / sampleSize, region.top / sampleSize,
+                region.right / sampleSize, region.bottom / sampleSize);
+        if (!rect.intersect(0, 0, sampled.getWidth(), sampled.getHeight()) || rect.isEmpty()) {
+            sampled.recycle();
+            return null;
+        }
+        Bitmap decoded = Bitmap.createBitmap(sampled, rect.left, rect.top, rect.width(),
+                rect.height());
+        if (decoded != sampled) {
+            sampled.recycle();
+        }
+        return decoded;
+    }
+
+}
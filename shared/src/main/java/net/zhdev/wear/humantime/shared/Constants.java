@@ -30,28 +30,18 @@ public final class Constants {
 
     public static final String BACKGROUND_COLOR_KEY = "background_color";
 
-    public static final String BACKGROUND_COLOR_PATH = "/background_color";
-
     public static final String BACKGROUND_ASSET_KEY = "background_asset";
 
     public static final String BACKGROUND_ASSET_PATH = "/background_asset";
 
     public static final String TEXT_COLOR_KEY = "text_color";
 
-    public static final String TEXT_COLOR_PATH = "/text_color";
-
     public static final String TEXT_STYLE_KEY = "text_style";
 
-    public static final String TEXT_STYLE_PATH = "/text_style";
-
     public static final String TEXT_SHADOW_KEY = "text_shadow";
 
-    public static final String TEXT_SHADOW_PATH = "/text_shadow";
-
     public static final String TEXT_SIZE_KEY = "text_size";
 
-    public static final String TEXT_SIZE_PATH = "/text_size";
-
     public static final float TEXT_SIZE_LARGE = 30.0F;
 
     public static final float TEXT_SIZE_MEDIUM = 25.0F;
@@ -62,8 +52,6 @@ public final class Constants {
 
     public static final String TEXT_POSITION_KEY = "text_position";
 
-    public static final String TEXT_POSITION_PATH = "/text_position";
-
     public static final int TEXT_POSITION_TOP_LEFT = 0;
 
     public static final int TEXT_POSITION_TOP_CENTER = 1;
@@ -84,17 +72,13 @@ public final class Constants {
 
     public static final String TEXT_CASE_KEY = "text_case";
 
-    public static final String TEXT_CASE_PATH = "/text_case";
-
     public static final int TEXT_CASE_NO_CAPS = 0;
 
     public static final int TEXT_CASE_ALL_CAPS = 1;
 
     public static final int TEXT_CASE_FIRST_CAP = 2;
 
-    public static final String BACKGROUND_ASSET_FILE_NAME = "background_image.png";
-
-    public static final String BACKGROUND_ASSET_LAST_CHANGED_KEY = "background_last_changed";
+    public static final String BACKGROUND_ASSET_FILE_NAME = "background_image";
 
     public static final String BACKGROUND_TYPE_KEY = "background_type";
 
@@ -104,11 +88,78 @@ public final class Constants {
 
     public static final String TEXT_FONT_KEY = "text_font";
 
-    public static final String TEXT_FONT_PATH = "/text_font";
-
     public static final String DATE_KEY = "date";
 
-    public static final String DATE_PATH = "/date";
+    public static final String CONFIG_PATH = "/config";
+
+    public static final String CONFIG_VERSION_KEY = "config_version";
+
+    /**
+     * The version of the format of the data map at {@link #CONFIG_PATH}. It must be increased
+     * when the meaning of a setting changes.
+     */
+    public static final int CONFIG_VERSION = 1;
+
+    /**
+     * The keys of the settings synced in the data map at {@link #CONFIG_PATH}.
+     */
+    public static final String[] CONFIG_KEYS = {
+            BACKGROUND_TYPE_KEY,
+            BACKGROUND_COLOR_KEY,
+            TEXT_COLOR_KEY,
+            TEXT_STYLE_KEY,
+            TEXT_SHADOW_KEY,
+            TEXT_SIZE_KEY,
+            TEXT_POSITION_KEY,
+            TEXT_CASE_KEY,
+            TEXT_FONT_KEY,
+            DATE_KEY
+    };
+
+    public static final String DISPLAY_PATH = "/display";
+
+    public static final String DISPLAY_WIDTH_KEY = "display_width";
+
+    public static final String DISPLAY_HEIGHT_KEY = "display_height";
+
+    public static final String BACKGROUND_HASH_KEY = "background_hash";
+
+    public static final String BACKGROUND_LIBRARY_KEY = "background_library";
+
+    public static final String BACKGROUND_LIBRARY_PATH = "/background_library";
+
+    public static final String BACKGROUND_MISSING_KEY = "background_missing";
+
+    public static final String BACKGROUND_VARIANT_DEFAULT = "default";
+
+    public static final String BACKGROUND_VARIANT_DIMMED = "dimmed";
+
+    public static final String BACKGROUND_VARIANT_AMBIENT = "ambient";
+
+    /**
+     * Returns the key of the asset of a background variant prepared for a display size.
+     *
+     * @param variant one of the <code>BACKGROUND_VARIANT_</code> constants
+     * @param width   the width of the display in pixels
+     * @param height  the height of the display in pixels
+     * @return the key of the asset in the background data map
+     */
+    public static String getBackgroundAssetKey(String variant, int width, int height) {
+        return BACKGROUND_ASSET_KEY + '_' + variant + '_' + width + 'x' + height;
+    }
+
+    /**
+     * Returns the name of the file a background variant is stored in.
+     *
+     * @param variant one of the <code>BACKGROUND_VARIANT_</code> constants
+     * @return the name of the file
+     */
+    public static String getBackgroundFileName(String variant) {
+        if (BACKGROUND_VARIANT_DEFAULT.equals(variant)) {
+            return BACKGROUND_ASSET_FILE_NAME;
+        }
+        return BACKGROUND_ASSET_FILE_NAME + "_" + variant;
+    }
 
     public static final int positionToGravity(int position) {
         switch (position) {
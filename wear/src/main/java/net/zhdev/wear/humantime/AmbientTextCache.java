@@ -0,0 +1,55 @@
+/*
+ * Copyright 2014 Julio García Muñoz (ZhDev)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.zhdev.wear.humantime;
+
+import android.graphics.Bitmap;
+import android.util.LruCache;
+
+/**
+ * <p><code>AmbientTextCache</code> keeps the texts of a clock already rasterized for ambient mode,
+ * so drawing them while the screen is dimmed is a single bitmap blit.</p>
+ *
+ * <p>The bitmaps only store the coverage of the glyphs (<code>ALPHA_8</code>) and the total size
+ * of the cache is bounded. Evicted bitmaps are recycled, so they must only be used right after
+ * getting them from the cache. The owner must clear the cache whenever the font, the size, the
+ * position or the locale of the text changes.</p>
+ *
+ * @author Julio García Muñoz (ZhDev)
+ */
+public class AmbientTextCache extends LruCache<String, Bitmap> {
+
+    private static final int MAX_SIZE_BYTES = 1024 * 1024;
+
+    public AmbientTextCache() {
+        super(MAX_SIZE_BYTES);
+    }
+
+    @Override
+    protected int sizeOf(String key, Bitmap value) {
+        return value.getByteCount();
+    }
+
+    @Override
+    protected void entryRemoved(boolean evicted, String key, Bitmap oldValue, Bitmap newValue) {
+        oldValue.recycle();
+    }
+
+    public void clear() {
+        evictAll();
+    }
+
+}
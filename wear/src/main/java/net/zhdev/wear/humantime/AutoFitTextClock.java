@@ -16,57 +16,106 @@
 
 package net.zhdev.wear.humantime;
 
-import android.content.BroadcastReceiver;
 import android.content.Context;
-import android.content.Intent;
-import android.content.IntentFilter;
+import android.content.res.Configuration;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Typeface;
+import android.text.TextPaint;
 import android.util.AttributeSet;
+import android.util.TypedValue;
+import android.view.View;
 import android.view.animation.Animation;
 import android.view.animation.AnimationUtils;
+import android.widget.TextView;
 
-import java.util.Calendar;
 import java.util.TimeZone;
 
-import me.grantland.widget.AutofitTextView;
-
 /**
  * <p><code>AutoFitTextClock</code> is a modified version of {@link android.widget.TextClock} that
  * doesn't provide an implementation of how the time/date is actually represented, leaving that for
  * inheriting classes. The time/date representation provides an animation when the time changes and
  * can be disabled on run time.</p>
  *
- * <p>It inherits from {@link me.grantland.widget.AutofitTextView} instead of
- * <code>TextView</code>, so it can fit automatically within given bounds horizontally.</p>
+ * <p>The text is fitted automatically within the bounds of the view by a {@link TextFitter},
+ * which computes the size from the widths of the lines of the text in a single measure pass.</p>
+ *
+ * <p>The time is provided by the shared {@link TickDispatcher} as a precomputed
+ * {@link TransitionSchedule} instead of a <code>Calendar</code> and the line count of the
+ * displayed text is cached, so a tick that doesn't change the text allocates nothing.</p>
+ *
+ * <p>Instead of processing every <code>ACTION_TIME_TICK</code>, the clock declares the period in
+ * which its text can change and the dispatcher only wakes it up at those instants.</p>
+ *
+ * <p>The size that fits each text is stored in a {@link TextSizeCache}, so a text is only
+ * measured the first time it's displayed with a given configuration.</p>
+ *
+ * <p>In ambient mode every text is rasterized once, without antialiasing, into an
+ * {@link AmbientTextCache}, and drawing the view is just drawing that bitmap. The cache is cleared
+ * when the font, size, position or locale change.</p>
  *
  * @author Julio García Muñoz (ZhDev)
  */
-public abstract class AutoFitTextClock extends AutofitTextView {
+public abstract class AutoFitTextClock extends TextView {
+
+    private static final float MIN_TEXT_SIZE_SP = 8.0F;
 
     private boolean mAttached;
 
     private String mCurrentText;
 
+    private int mCurrentLines;
+
+    private int mDisplayedLines;
+
     private Animation mAnimationIn;
 
     private Animation mAnimationOut;
 
-    private Calendar mTime;
-
     private String mTimeZone;
 
-    private final BroadcastReceiver mIntentReceiver = new BroadcastReceiver() {
+    private final TickDispatcher.Listener mTickListener = new TickDispatcher.Listener() {
         @Override
-        public void onReceive(Context context, Intent intent) {
-            if (mTimeZone == null && Intent.ACTION_TIMEZONE_CHANGED.equals(intent.getAction())) {
-                final String timeZone = intent.getStringExtra("time-zone");
-                createTime(timeZone);
-            }
-            onTimeChanged();
+        public String getTimeZone() {
+            return mTimeZone;
+        }
+
+        @Override
+        public long getUpdatePeriod() {
+            return AutoFitTextClock.this.getUpdatePeriod();
+        }
+
+        @Override
+        public long getUpdatePhase() {
+            return AutoFitTextClock.this.getUpdatePhase();
+        }
+
+        @Override
+        public void onTimeChanged(TransitionSchedule schedule) {
+            AutoFitTextClock.this.onTimeChanged(schedule);
         }
     };
 
     private boolean mAnimationsEnabled;
 
+    private float mBaseTextSize;
+
+    private float mMinTextSize;
+
+    private TextFitter mTextFitter;
+
+    private boolean mAmbient;
+
+    private AmbientTextCache mAmbientTextCache;
+
+    private Paint mAmbientPaint;
+
+    private String mTypefaceKey;
+
+    private TextSizeCache mTextSizeCache;
+
     /**
      * Creates a new clock using the default patterns for the current locale.
      *
@@ -117,8 +166,17 @@ public abstract class AutoFitTextClock extends AutofitTextView {
         }
 
         setText("");
+        mBaseTextSize = getTextSize();
+        mMinTextSize = TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_SP, MIN_TEXT_SIZE_SP,
+                getResources().getDisplayMetrics());
+        mTextFitter = new TextFitter();
+        mAmbientTextCache = new AmbientTextCache();
+        mAmbientPaint = new Paint();
+        mAmbientPaint.setColor(Color.WHITE);
         mAnimationsEnabled = true;
         mCurrentText = "";
+        mCurrentLines = countLines(mCurrentText);
+        mDisplayedLines = mCurrentLines;
         mAnimationIn = AnimationUtils.loadAnimation(context, R.anim.push_in_right);
         mAnimationOut = AnimationUtils.loadAnimation(context, R.anim.push_out_left);
         mAnimationOut.setAnimationListener(new Animation.AnimationListener() {
@@ -138,15 +196,6 @@ public abstract class AutoFitTextClock extends AutofitTextView {
 
             }
         });
-        createTime(mTimeZone);
-    }
-
-    private void createTime(String timeZone) {
-        if (timeZone != null) {
-            mTime = Calendar.getInstance(TimeZone.getTimeZone(timeZone));
-        } else {
-            mTime = Calendar.getInstance();
-        }
     }
 
     /**
@@ -177,45 +226,47 @@ public abstract class AutoFitTextClock extends AutofitTextView {
     public void setTimeZone(String timeZone) {
         mTimeZone = timeZone;
 
-        createTime(timeZone);
-        onTimeChanged();
-    }
-
-    private void registerReceiver() {
-        final IntentFilter filter = new IntentFilter();
-
-        filter.addAction(Intent.ACTION_TIME_TICK);
-        filter.addAction(Intent.ACTION_TIME_CHANGED);
-        filter.addAction(Intent.ACTION_TIMEZONE_CHANGED);
-
-        getContext().registerReceiver(mIntentReceiver, filter, null, getHandler());
-    }
-
-    private void unregisterReceiver() {
-        getContext().unregisterReceiver(mIntentReceiver);
+        if (mAttached && !isInEditMode()) {
+            TickDispatcher.getInstance(getContext()).update();
+        }
     }
 
     /**
      * Updates the time. Every there is a time change the time is transformed into its textual
      * representation for the current locale and the <code>View</code> is updated.
      */
-    private void onTimeChanged() {
-        mTime.setTimeInMillis(System.currentTimeMillis());
+    private void onTimeChanged(TransitionSchedule schedule) {
+        setTime(getDateTimeText(schedule));
+    }
 
-        String time = getDateTimeText(mTime);
+    /**
+     * Indicates how often the text of the clock can change. It must divide a day evenly.
+     *
+     * @return the length of the update period in milliseconds
+     */
+    protected abstract long getUpdatePeriod();
 
-        setTime(time);
+    /**
+     * Indicates the offset of the text changes within the update period, for instance when the
+     * time is rounded instead of truncated. By default the text changes at the start of every
+     * period.
+     *
+     * @return the offset in milliseconds
+     */
+    protected long getUpdatePhase() {
+        return 0;
     }
 
     /**
-     * Processes the current date/time stored in a <code>Calendar</code> and transforms it to a
-     * textual representation. This method will be called every time there is a time change and the
-     * view is attached to a windows.
+     * Transforms the current date/time to a textual representation, using the data precomputed in
+     * a <code>TransitionSchedule</code>. This method will be called every time there is a time
+     * change and the view is attached to a windows. Implementations should return the same
+     * instance while the text doesn't change, so the tick doesn't allocate.
      *
-     * @param calendar a date and time
+     * @param schedule the schedule of the time zone of the clock, at the current time
      * @return the textual representation of the date and time
      */
-    protected abstract String getDateTimeText(Calendar calendar);
+    protected abstract String getDateTimeText(TransitionSchedule schedule);
 
     /**
      * Updates the time in the <code>View</code> if it is different for the one currently being
@@ -226,6 +277,7 @@ public abstract class AutoFitTextClock extends AutofitTextView {
     private void setTime(String time) {
         if (!time.equals(mCurrentText)) {
             mCurrentText = time;
+            mCurrentLines = countLines(time);
             if (mAnimationsEnabled) {
                 startAnimation(mAnimationOut);
             } else {
@@ -234,25 +286,207 @@ public abstract class AutoFitTextClock extends AutofitTextView {
         }
     }
 
-    private int countLines(String text) {
+    private static int countLines(String text) {
         if (text == null) {
             return 0;
         }
-        return text.length() - text.replace("\n", "").length() + 1;
+        int lines = 1;
+        for (int i = text.length() - 1; i >= 0; i--) {
+            if (text.charAt(i) == '\n') {
+                lines++;
+            }
+        }
+        return lines;
     }
 
     /**
-     * Updates the View with the new text stored, fixing the autofit proportions.
+     * Updates the View with the new text stored, fitting it to the bounds of the view. The maximum
+     * lines, the size and the text are set together, so the view is laid out only once.
      */
     private void updateText() {
-        int pastMaxLines = countLines(getText().toString());
-        int newMaxLines = countLines(mCurrentText);
-        if ((pastMaxLines != newMaxLines)) {
-            setText("");
-            setMaxLines(newMaxLines);
-            setText(mCurrentText);
+        if (mDisplayedLines != mCurrentLines) {
+            setMaxLines(mCurrentLines);
+            mDisplayedLines = mCurrentLines;
+        }
+        applyTextSize(getFittedSize(mCurrentText));
+        setText(mCurrentText);
+    }
+
+    private void applyTextSize(float size) {
+        if (getTextSize() != size) {
+            super.setTextSize(TypedValue.COMPLEX_UNIT_PX, size);
+        }
+    }
+
+    /**
+     * Returns the largest size, up to the base text size, at which a text fits in the view. The
+     * size is taken from the cache if the text has already been fitted.
+     */
+    private float getFittedSize(String text) {
+        int width = getWidth() - getPaddingLeft() - getPaddingRight();
+        if (width <= 0 || text.isEmpty()) {
+            return mBaseTextSize;
+        }
+        int maxHeight = getMaxHeight();
+        if (maxHeight > 0) {
+            maxHeight -= getPaddingTop() + getPaddingBottom();
+        }
+        TextSizeCache cache = getTextSizeCache(width, maxHeight);
+        float size = cache != null ? cache.get(text) : 0;
+        if (size == 0) {
+            size = mTextFitter.fit(text, getPaint(), mBaseTextSize, mMinTextSize, width, maxHeight);
+            if (cache != null) {
+                cache.put(text, size);
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Returns the text size cache with the fingerprint of the current configuration, or null if
+     * the view has no ID to name the cache.
+     */
+    private TextSizeCache getTextSizeCache(int width, int maxHeight) {
+        if (getId() == View.NO_ID) {
+            return null;
+        }
+        if (mTextSizeCache == null) {
+            mTextSizeCache = new TextSizeCache(getContext(),
+                    getResources().getResourceEntryName(getId()));
+        }
+        Typeface typeface = getTypeface();
+        String fingerprint = new StringBuilder()
+                .append(mTypefaceKey).append('|')
+                .append(typeface != null ? typeface.getStyle() : Typeface.NORMAL).append('|')
+                .append(mBaseTextSize).append('|')
+                .append(width).append('x').append(maxHeight)
+                .toString();
+        mTextSizeCache.setFingerprint(fingerprint);
+        return mTextSizeCache;
+    }
+
+    /**
+     * Sets the base text size, the text is displayed at this size unless it doesn't fit.
+     */
+    @Override
+    public void setTextSize(int unit, float size) {
+        float baseTextSize = TypedValue.applyDimension(unit, size,
+                getResources().getDisplayMetrics());
+        if (baseTextSize != mBaseTextSize) {
+            clearAmbientTextCache();
+        }
+        mBaseTextSize = baseTextSize;
+        if (mTextFitter != null && mCurrentText != null) {
+            applyTextSize(getFittedSize(mCurrentText));
         } else {
-            setText(mCurrentText);
+            super.setTextSize(unit, size);
+        }
+    }
+
+    @Override
+    protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+        super.onSizeChanged(w, h, oldw, oldh);
+        // The height depends on the text, so it only invalidates the bitmaps of other texts when
+        // the width changes
+        if (w != oldw) {
+            clearAmbientTextCache();
+        }
+        if (w != oldw && mTextFitter != null && mCurrentText != null) {
+            applyTextSize(getFittedSize(mCurrentText));
+        }
+    }
+
+    @Override
+    public void setTypeface(Typeface tf) {
+        // Typefaces are cached, so the same font gets the same instance
+        if (tf != getTypeface()) {
+            clearAmbientTextCache();
+        }
+        super.setTypeface(tf);
+    }
+
+    @Override
+    public void setGravity(int gravity) {
+        if (gravity != getGravity()) {
+            clearAmbientTextCache();
+        }
+        super.setGravity(gravity);
+    }
+
+    @Override
+    protected void onConfigurationChanged(Configuration newConfig) {
+        super.onConfigurationChanged(newConfig);
+        clearAmbientTextCache();
+    }
+
+    private void clearAmbientTextCache() {
+        // Called from the TextView constructor too, before the cache is created
+        if (mAmbientTextCache != null) {
+            mAmbientTextCache.clear();
+        }
+    }
+
+    /**
+     * Sets whether the clock is displayed in ambient mode. In ambient mode the text is drawn from
+     * bitmaps rasterized without antialiasing, using the current text color and shadow, so they
+     * should be set to white and none before entering it.
+     *
+     * @param ambient true to enter ambient mode, false to leave it
+     */
+    public void setAmbientMode(boolean ambient) {
+        if (mAmbient != ambient) {
+            mAmbient = ambient;
+            invalidate();
+        }
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        if (!mAmbient || mAmbientTextCache == null || mCurrentText.isEmpty() || getWidth() == 0
+                || getHeight() == 0) {
+            super.onDraw(canvas);
+            return;
+        }
+        Bitmap bitmap = mAmbientTextCache.get(mCurrentText);
+        if (bitmap == null || bitmap.getWidth() != getWidth()
+                || bitmap.getHeight() != getHeight()) {
+            bitmap = rasterizeText();
+            mAmbientTextCache.put(mCurrentText, bitmap);
+        }
+        canvas.drawBitmap(bitmap, 0, 0, mAmbientPaint);
+    }
+
+    /**
+     * Draws the text as the TextView would, but without antialiasing, into a bitmap the size of
+     * the view that only keeps the coverage of the glyphs.
+     */
+    private Bitmap rasterizeText() {
+        Bitmap bitmap = Bitmap.createBitmap(getWidth(), getHeight(), Bitmap.Config.ALPHA_8);
+        TextPaint paint = getPaint();
+        boolean antiAlias = paint.isAntiAlias();
+        paint.setAntiAlias(false);
+        super.onDraw(new Canvas(bitmap));
+        paint.setAntiAlias(antiAlias);
+        return bitmap;
+    }
+
+    /**
+     * Identifies the typeface currently set. Typefaces can't be persisted, so this key is used to
+     * tell apart the sizes stored for different fonts in the text size cache.
+     *
+     * @param typefaceKey a string that uniquely identifies the font and its style
+     */
+    public void setTypefaceKey(String typefaceKey) {
+        mTypefaceKey = typefaceKey;
+    }
+
+    /**
+     * Displays the current text again, fitting it to the current configuration. It must be called
+     * after changing the typeface.
+     */
+    public void refreshText() {
+        if (mCurrentText != null && !mCurrentText.isEmpty()) {
+            updateText();
         }
     }
 
@@ -267,12 +501,10 @@ public abstract class AutoFitTextClock extends AutofitTextView {
         if (!mAttached) {
             mAttached = true;
 
-            registerReceiver();
-            createTime(mTimeZone);
             if (isInEditMode()) {
                 return;
             }
-            onTimeChanged();
+            TickDispatcher.getInstance(getContext()).addListener(mTickListener);
         }
     }
 
@@ -281,7 +513,7 @@ public abstract class AutoFitTextClock extends AutofitTextView {
         super.onDetachedFromWindow();
 
         if (mAttached) {
-            unregisterReceiver();
+            TickDispatcher.getInstance(getContext()).removeListener(mTickListener);
             mAttached = false;
         }
     }
@@ -0,0 +1,160 @@
+/*
+ * Copyright 2014 Julio García Muñoz (ZhDev)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.zhdev.wear.humantime;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.graphics.Bitmap;
+
+/**
+ * <p><code>BackgroundCache</code> keeps the decoded background images of the watch face in
+ * memory, so waking the screen up doesn't read and decode the image files again.</p>
+ *
+ * <p>There's a slot for the interactive background and another for the ambient one. Each bitmap
+ * is stored along with a key that identifies what it was loaded from (the hash of the background
+ * in the {@link BackgroundLibrary} and the variant), and it's only returned for that key. The
+ * cache is shared by the whole process and it's released when the system is running low on
+ * memory. Only bitmaps are kept, every activity wraps them in its own drawables, so the cache
+ * never holds on to a finished activity.</p>
+ *
+ * <p>It also owns the {@link BitmapPool} of the backgrounds: a replaced bitmap is returned to
+ * the pool once it's no longer displayed, and its memory is used to load the next one.</p>
+ *
+ * @author Julio García Muñoz (ZhDev)
+ */
+public class BackgroundCache {
+
+    public static final int SLOT_INTERACTIVE = 0;
+
+    public static final int SLOT_AMBIENT = 1;
+
+    private static final int SLOT_COUNT = 2;
+
+    private static BackgroundCache sInstance;
+
+    private final BitmapPool mPool = new BitmapPool();
+
+    private final Bitmap[] mBitmaps = new Bitmap[SLOT_COUNT];
+
+    private final String[] mKeys = new String[SLOT_COUNT];
+
+    private final ComponentCallbacks2 mComponentCallbacks = new ComponentCallbacks2() {
+        @Override
+        public void onTrimMemory(int level) {
+            if (level >= TRIM_MEMORY_RUNNING_LOW) {
+                release();
+            }
+        }
+
+        @Override
+        public void onConfigurationChanged(Configuration newConfig) {
+
+        }
+
+        @Override
+        public void onLowMemory() {
+            release();
+        }
+    };
+
+    private BackgroundCache(Context context) {
+        context.registerComponentCallbacks(mComponentCallbacks);
+    }
+
+    public static BackgroundCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new BackgroundCache(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    /**
+     * @param slot {@link #SLOT_INTERACTIVE} or {@link #SLOT_AMBIENT}
+     * @param key  identifies the hash and variant of the background
+     * @return the bitmap loaded for that key or null if it isn't cached
+     */
+    public Bitmap get(int slot, String key) {
+        return key.equals(mKeys[slot]) ? mBitmaps[slot] : null;
+    }
+
+    /**
+     * @return the pool the bitmaps of the backgrounds are taken from and returned to
+     */
+    public BitmapPool getPool() {
+        return mPool;
+    }
+
+    /**
+     * Stores the bitmap loaded for a key, replacing the previous one in the slot.
+     *
+     * @param slot   {@link #SLOT_INTERACTIVE} or {@link #SLOT_AMBIENT}
+     * @param key    identifies the hash and variant of the background
+     * @param bitmap the bitmap loaded from the image
+     * @return the bitmap cached before, to be passed to {@link #recycle(Bitmap)} once it's not
+     * displayed anymore, or null
+     */
+    public Bitmap put(int slot, String key, Bitmap bitmap) {
+        if (bitmap == null) {
+            throw new IllegalArgumentException("Bitmap must be non-null");
+        }
+        Bitmap previous = mBitmaps[slot];
+        mKeys[slot] = key;
+        mBitmaps[slot] = bitmap;
+        return previous;
+    }
+
+    /**
+     * Removes the cached bitmap of a slot.
+     *
+     * @param slot {@link #SLOT_INTERACTIVE} or {@link #SLOT_AMBIENT}
+     * @return the bitmap removed, to be passed to {@link #recycle(Bitmap)} once it's not
+     * displayed anymore, or null
+     */
+    public Bitmap remove(int slot) {
+        Bitmap previous = mBitmaps[slot];
+        mBitmaps[slot] = null;
+        mKeys[slot] = null;
+        return previous;
+    }
+
+    /**
+     * Returns a bitmap that isn't displayed anymore to the pool.
+     *
+     * @param bitmap a bitmap returned by {@link #put(int, String, Bitmap)} or
+     *               {@link #remove(int)}, it can be null
+     */
+    public void recycle(Bitmap bitmap) {
+        if (bitmap != null && bitmap != mBitmaps[SLOT_INTERACTIVE]
+                && bitmap != mBitmaps[SLOT_AMBIENT]) {
+            mPool.put(bitmap);
+        }
+    }
+
+    /**
+     * Drops the cached bitmaps and the pooled one. The cached bitmaps might still be displayed,
+     * so they aren't recycled.
+     */
+    public void release() {
+        for (int i = 0; i < SLOT_COUNT; i++) {
+            mBitmaps[i] = null;
+            mKeys[i] = null;
+        }
+        mPool.clear();
+    }
+
+}
@@ -0,0 +1,499 @@
+/*
+ * Copyright 2014 Julio García Muñoz (ZhDev)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.zhdev.wear.humantime;
+
+import com.google.android.gms.wearable.Asset;
+import com.google.android.gms.wearable.DataApi;
+import com.google.android.gms.wearable.DataMap;
+import com.google.android.gms.wearable.PutDataMapRequest;
+import com.google.android.gms.wearable.Wearable;
+
+import net.zhdev.wear.humantime.shared.Constants;
+
+import android.app.IntentService;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.graphics.Point;
+import android.os.ParcelFileDescriptor;
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p><code>BackgroundIngestService</code> downloads the background images sent by the handheld
+ * and stores them in the {@link BackgroundLibrary}, on its own worker thread. The
+ * {@link DataLayerListenerService} hands the background over and goes on with the rest of the
+ * settings, so they're never delayed by a slow transfer.</p>
+ *
+ * <p>The requests are queued by the path of their data item. When a newer request arrives for the
+ * same path, an older one still in the queue is skipped and a download in progress is cancelled,
+ * since only the last background would be displayed. Deleting the data item supersedes the
+ * requests in the same way, so a download finishing after a color has been selected doesn't
+ * replace it.</p>
+ *
+ * <p>Every asset is streamed into a temporary file through a large direct buffer, synced to disk
+ * and renamed into place, so a file is either complete or absent. The hash of the background is
+ * only written to the preferences, which makes the watch face display it, once all its files are
+ * in place.</p>
+ *
+ * <p>The background stored by the versions before the library is moved into it once, so it's
+ * still displayed after an upgrade.</p>
+ *
+ * @author Julio García Muñoz (ZhDev)
+ */
+public class BackgroundIngestService extends IntentService {
+
+    private static final String ACTION_MIGRATE =
+            "net.zhdev.wear.humantime.action.MIGRATE_BACKGROUND";
+
+    private static final String EXTRA_DATA_MAP = "net.zhdev.wear.humantime.extra.DATA_MAP";
+
+    private static final String EXTRA_PATH = "net.zhdev.wear.humantime.extra.PATH";
+
+    private static final String EXTRA_REQUEST_ID = "net.zhdev.wear.humantime.extra.REQUEST_ID";
+
+    private static final String TEMP_FILE_SUFFIX = ".tmp";
+
+    private static final int TIMEOUT_MS = 5000;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final String[] VARIANTS = {
+            Constants.BACKGROUND_VARIANT_DEFAULT,
+            Constants.BACKGROUND_VARIANT_DIMMED,
+            Constants.BACKGROUND_VARIANT_AMBIENT
+    };
+
+    private WearableConnection mConnection;
+
+    private ByteBuffer mBuffer;
+
+    // The ID of the latest request queued for each path
+    private final Map<String, Integer> mLatestRequests = new HashMap<String, Integer>();
+
+    private volatile String mCurrentPath;
+
+    private volatile int mCurrentRequestId;
+
+    public BackgroundIngestService() {
+        super("BackgroundIngestService");
+    }
+
+    /**
+     * Queues a background received from the handheld to be stored. It supersedes any request
+     * queued before for the same path.
+     *
+     * @param context the context used to start the service
+     * @param path    the path of the data item of the background
+     * @param dataMap the data map of the background
+     */
+    public static void ingest(Context context, String path, DataMap dataMap) {
+        Intent intent = new Intent(context, BackgroundIngestService.class);
+        intent.putExtra(EXTRA_PATH, path);
+        intent.putExtra(EXTRA_DATA_MAP, dataMap.toBundle());
+        context.startService(intent);
+    }
+
+    /**
+     * Discards the backgrounds queued before for a path, because its data item has been deleted.
+     * A download in progress is cancelled and its image isn't selected.
+     *
+     * @param context the context used to start the service
+     * @param path    the path of the deleted data item
+     */
+    public static void discard(Context context, String path) {
+        Intent intent = new Intent(context, BackgroundIngestService.class);
+        intent.putExtra(EXTRA_PATH, path);
+        context.startService(intent);
+    }
+
+    /**
+     * Moves the background stored by the versions before the {@link BackgroundLibrary} into it, if
+     * there's one. It's done on the worker thread, since the image has to be hashed and
+     * transcoded.
+     *
+     * @param context the context used to start the service
+     */
+    public static void migrateLegacyBackground(Context context) {
+        if (context.getFileStreamPath(getLegacyFileName(Constants.BACKGROUND_VARIANT_DEFAULT))
+                .exists()) {
+            Intent intent = new Intent(context, BackgroundIngestService.class);
+            intent.setAction(ACTION_MIGRATE);
+            context.startService(intent);
+        }
+    }
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        mConnection = new WearableConnection(this);
+    }
+
+    @Override
+    public void onDestroy() {
+        // The connection is shared by all the requests queued while the service is alive
+        mConnection.disconnect();
+        super.onDestroy();
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        if (intent != null) {
+            synchronized (mLatestRequests) {
+                mLatestRequests.put(intent.getStringExtra(EXTRA_PATH), startId);
+            }
+            intent.putExtra(EXTRA_REQUEST_ID, startId);
+        }
+        return super.onStartCommand(intent, flags, startId);
+    }
+
+    @Override
+    protected void onHandleIntent(Intent intent) {
+        if (ACTION_MIGRATE.equals(intent.getAction())) {
+            migrateLegacyBackground();
+            return;
+        }
+        mCurrentPath = intent.getStringExtra(EXTRA_PATH);
+        mCurrentRequestId = intent.getIntExtra(EXTRA_REQUEST_ID, 0);
+        if (isSuperseded() || !intent.hasExtra(EXTRA_DATA_MAP)) {
+            // A discard request only supersedes the previous ones, there's nothing to store
+            return;
+        }
+        DataMap dataMap = DataMap.fromBundle(intent.getBundleExtra(EXTRA_DATA_MAP));
+        PreferenceBatch batch = new PreferenceBatch(getSharedPreferences(Constants.PREFS_NAME,
+                MODE_PRIVATE));
+        String hash = getBackgroundHash(dataMap);
+        BackgroundLibrary library = BackgroundLibrary.getInstance(this);
+        if (!BackgroundLibrary.isValidHash(hash)) {
+            // Without a valid hash the image can't be stored in the library
+            Log.w("Human Time", "Received a background without a valid hash: " + hash);
+            return;
+        } else if (library.contains(hash)) {
+            // The image was sent before, it's only selected again
+            library.touch(hash);
+            batch.put(Constants.BACKGROUND_HASH_KEY, hash);
+            batch.put(Constants.BACKGROUND_TYPE_KEY, Constants.BACKGROUND_TYPE_IMAGE);
+        } else if (dataMap.getAsset(Constants.BACKGROUND_ASSET_KEY) == null) {
+            // The handheld didn't send the image because it was in the library, but it has been
+            // evicted since. The current background is kept and the handheld is told to send the
+            // image again.
+            library.remove(hash);
+            publishLibrary(library, hash);
+            return;
+        } else if (!mConnection.connect()) {
+            // The image can't be downloaded without a connection, which says nothing about the
+            // image itself, so the current background is kept
+            Log.w("Human Time", "The background couldn't be downloaded, no connection");
+            return;
+        } else if (saveBackground(dataMap, library.createDirectory(hash))) {
+            library.add(hash);
+            publishLibrary(library, null);
+            batch.put(Constants.BACKGROUND_HASH_KEY, hash);
+            batch.put(Constants.BACKGROUND_TYPE_KEY, Constants.BACKGROUND_TYPE_IMAGE);
+        } else if (isSuperseded()) {
+            // The download was cancelled, the newer background is stored instead
+            library.remove(hash);
+            return;
+        } else {
+            // The asset couldn't be read or decoded, the stored color is displayed instead
+            library.remove(hash);
+            batch.put(Constants.BACKGROUND_TYPE_KEY, Constants.BACKGROUND_TYPE_COLOR);
+        }
+        if (isSuperseded()) {
+            // The selection changed while the background was stored, it's kept in the library
+            // but not displayed
+            return;
+        }
+        batch.apply();
+    }
+
+    /**
+     * Adds the background files stored by the versions before the library to it, and selects the
+     * background if it was the one displayed. The files of those versions are deleted afterwards,
+     * including the ones that couldn't be migrated.
+     */
+    private void migrateLegacyBackground() {
+        File legacyFile = getFileStreamPath(
+                getLegacyFileName(Constants.BACKGROUND_VARIANT_DEFAULT));
+        SharedPreferences preferences = getSharedPreferences(Constants.PREFS_NAME, MODE_PRIVATE);
+        boolean selected = preferences.getInt(Constants.BACKGROUND_TYPE_KEY,
+                Constants.BACKGROUND_TYPE_COLOR) == Constants.BACKGROUND_TYPE_IMAGE
+                && preferences.getString(Constants.BACKGROUND_HASH_KEY, null) == null;
+        if (selected && legacyFile.exists()) {
+            try {
+                String hash = computeHash(legacyFile);
+                BackgroundLibrary library = BackgroundLibrary.getInstance(this);
+                File directory = library.createDirectory(hash);
+                for (String variant : VARIANTS) {
+                    File file = getFileStreamPath(getLegacyFileName(variant));
+                    if (file.renameTo(new File(directory, Constants.getBackgroundFileName(variant)))
+                            && !RawBackground.transcode(this, directory, variant)) {
+                        RawBackground.delete(directory, variant);
+                    }
+                }
+                library.add(hash);
+                publishLibrary(library, null);
+                PreferenceBatch batch = new PreferenceBatch(preferences);
+                batch.put(Constants.BACKGROUND_HASH_KEY, hash);
+                batch.apply();
+            } catch (IOException e) {
+                Log.w("Human Time", "The previous background couldn't be migrated", e);
+            }
+        }
+        for (String variant : VARIANTS) {
+            getFileStreamPath(getLegacyFileName(variant)).delete();
+            getFileStreamPath("background_image_" + variant + ".raw").delete();
+        }
+    }
+
+    /**
+     * @return the name the versions before the library stored a variant of the background with
+     */
+    private static String getLegacyFileName(String variant) {
+        if (Constants.BACKGROUND_VARIANT_DEFAULT.equals(variant)) {
+            return "background_image.png";
+        }
+        return "background_image_" + variant + ".png";
+    }
+
+    /**
+     * Computes the hash of a background the same way the handheld does.
+     *
+     * @param file the encoded background image
+     * @return the SHA-1 of the content of the file, in hexadecimal
+     * @throws IOException if the file can't be read
+     */
+    private static String computeHash(File file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 isn't available", e);
+        }
+        FileInputStream inputStream = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int bytes;
+            while ((bytes = inputStream.read(buffer)) > 0) {
+                digest.update(buffer, 0, bytes);
+            }
+        } finally {
+            inputStream.close();
+        }
+        StringBuilder hash = new StringBuilder();
+        for (byte b : digest.digest()) {
+            hash.append(String.format("%02x", b));
+        }
+        return hash.toString();
+    }
+
+    /**
+     * @return true if a newer request has been queued for the path of the current one
+     */
+    private boolean isSuperseded() {
+        synchronized (mLatestRequests) {
+            Integer latest = mLatestRequests.get(mCurrentPath);
+            return latest != null && latest != mCurrentRequestId;
+        }
+    }
+
+    /**
+     * Returns the hash of a background sent by the handheld. The digest of the generic asset is
+     * used if the handheld didn't send a hash.
+     *
+     * @param dataMap the data map of the background
+     * @return the hash or null if the data map has neither a hash nor an asset
+     */
+    private static String getBackgroundHash(DataMap dataMap) {
+        String hash = dataMap.getString(Constants.BACKGROUND_HASH_KEY);
+        if (hash == null) {
+            Asset asset = dataMap.getAsset(Constants.BACKGROUND_ASSET_KEY);
+            if (asset != null) {
+                hash = asset.getDigest();
+            }
+        }
+        return hash;
+    }
+
+    /**
+     * Saves every variant of a background into its directory in the library. The connection must
+     * be established.
+     *
+     * @param dataMap   the data map of the background
+     * @param directory the directory of the background
+     * @return true if at least the default variant was saved, false otherwise
+     */
+    private boolean saveBackground(DataMap dataMap, File directory) {
+        Point size = RawBackground.getDisplaySize(this);
+        if (!saveBackgroundVariant(dataMap, directory, size,
+                Constants.BACKGROUND_VARIANT_DEFAULT)) {
+            return false;
+        }
+        if (isSuperseded()) {
+            return false;
+        }
+        saveBackgroundVariant(dataMap, directory, size, Constants.BACKGROUND_VARIANT_DIMMED);
+        if (isSuperseded()) {
+            return false;
+        }
+        saveBackgroundVariant(dataMap, directory, size, Constants.BACKGROUND_VARIANT_AMBIENT);
+        return !isSuperseded();
+    }
+
+    /**
+     * Publishes the hashes of the backgrounds in the library at
+     * {@link Constants#BACKGROUND_LIBRARY_PATH}, so the handheld doesn't send them again.
+     *
+     * @param library the library of this watch
+     * @param missing the hash of a background the handheld sent without its image but that isn't
+     *                stored anymore, or null
+     */
+    private void publishLibrary(BackgroundLibrary library, String missing) {
+        if (!mConnection.connect()) {
+            return;
+        }
+        PutDataMapRequest putDataMapRequest = PutDataMapRequest
+                .create(Constants.BACKGROUND_LIBRARY_PATH);
+        putDataMapRequest.getDataMap().putStringArrayList(Constants.BACKGROUND_LIBRARY_KEY,
+                library.getHashes());
+        if (missing != null) {
+            putDataMapRequest.getDataMap().putString(Constants.BACKGROUND_MISSING_KEY, missing);
+        }
+        Wearable.DataApi.putDataItem(mConnection.getClient(),
+                putDataMapRequest.asPutDataRequest()).await(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Saves a variant of the background, taking the asset prepared by the handheld for the size of
+     * this display. Only the default variant falls back to the generic image. The image is
+     * transcoded once here, so the watch face doesn't have to decode it every time it's loaded.
+     * If the variant isn't available its previous files are deleted.
+     *
+     * @param dataMap   the data map of the background
+     * @param directory the directory of the background
+     * @param size      the size of the display
+     * @param variant   one of the <code>BACKGROUND_VARIANT_</code> constants
+     * @return true if the variant was saved, false otherwise
+     */
+    private boolean saveBackgroundVariant(DataMap dataMap, File directory, Point size,
+            String variant) {
+        File file = new File(directory, Constants.getBackgroundFileName(variant));
+        Asset asset = dataMap.getAsset(Constants.getBackgroundAssetKey(variant, size.x, size.y));
+        if (asset == null && Constants.BACKGROUND_VARIANT_DEFAULT.equals(variant)) {
+            asset = dataMap.getAsset(Constants.BACKGROUND_ASSET_KEY);
+        }
+        if (asset == null || !saveFileFromAsset(asset, file)) {
+            file.delete();
+            RawBackground.delete(directory, variant);
+            return false;
+        }
+        if (!RawBackground.transcode(this, directory, variant)) {
+            RawBackground.delete(directory, variant);
+        }
+        return true;
+    }
+
+    /**
+     * Saves into persistent memory an asset existing in the Wear Data Layer. The asset is written
+     * into a temporary file first and renamed once it's complete and synced to disk. The
+     * connection must be established.
+     *
+     * @param asset the <code>Asset</code> that will be saved into a file
+     * @param file  the file the asset is saved to
+     * @return true if the asset was correctly retrieved and stored, false otherwise
+     */
+    private boolean saveFileFromAsset(Asset asset, File file) {
+        if (asset == null) {
+            throw new IllegalArgumentException("Asset must be non-null");
+        }
+        DataApi.GetFdForAssetResult result = Wearable.DataApi
+                .getFdForAsset(mConnection.getClient(), asset).await();
+        ParcelFileDescriptor descriptor = result.getFdForAsset();
+        if (!result.getStatus().isSuccess() || descriptor == null) {
+            return false;
+        }
+
+        File tempFile = new File(file.getParentFile(), file.getName() + TEMP_FILE_SUFFIX);
+        FileInputStream inputStream = new FileInputStream(descriptor.getFileDescriptor());
+        FileOutputStream outputStream = null;
+        try {
+            outputStream = new FileOutputStream(tempFile);
+            FileChannel source = inputStream.getChannel();
+            FileChannel destination = outputStream.getChannel();
+            ByteBuffer buffer = getBuffer();
+            while (source.read(buffer) >= 0) {
+                if (isSuperseded()) {
+                    return false;
+                }
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    destination.write(buffer);
+                }
+                buffer.clear();
+            }
+            outputStream.getFD().sync();
+            outputStream.close();
+            outputStream = null;
+            if (!tempFile.renameTo(file)) {
+                return false;
+            }
+        } catch (IOException e) {
+            return false;
+        } finally {
+            closeQuietly(inputStream);
+            closeQuietly(descriptor);
+            closeQuietly(outputStream);
+            tempFile.delete();
+        }
+
+        return true;
+    }
+
+    /**
+     * @return the buffer the assets are copied through, it's only used by the worker thread
+     */
+    private ByteBuffer getBuffer() {
+        if (mBuffer == null) {
+            mBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        }
+        mBuffer.clear();
+        return mBuffer;
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                // Nothing else can be done
+            }
+        }
+    }
+
+}
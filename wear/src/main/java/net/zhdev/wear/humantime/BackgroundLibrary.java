@@ -0,0 +1,231 @@
+/*
+ * Copyright 2014 Julio García Muñoz (ZhDev)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.zhdev.wear.humantime;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Map;
+
+/**
+ * <p><code>BackgroundLibrary</code> stores the background images received from the handheld on
+ * disk, each one under the hash of its content. Sending an image that is already stored doesn't
+ * transfer it again, and switching back to a recent background only changes the selected
+ * hash.</p>
+ *
+ * <p>Every background has its own directory with the image files and raw files of its variants.
+ * The time each background was last selected is kept in its own <code>SharedPreferences</code>
+ * file, and the least recently selected ones are deleted when the total size of the library goes
+ * over its limit. The library is shared by the whole process and can be used from any
+ * thread.</p>
+ *
+ * @author Julio García Muñoz (ZhDev)
+ */
+public class BackgroundLibrary {
+
+    private static final String PREFS_NAME = "background_library";
+
+    private static final String DIRECTORY_NAME = "backgrounds";
+
+    private static final long MAX_SIZE_BYTES = 8 * 1024 * 1024;
+
+    private static BackgroundLibrary sInstance;
+
+    private final File mDirectory;
+
+    private final SharedPreferences mPreferences;
+
+    private BackgroundLibrary(Context context) {
+        mDirectory = new File(context.getFilesDir(), DIRECTORY_NAME);
+        mPreferences = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    public static synchronized BackgroundLibrary getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new BackgroundLibrary(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    /**
+     * Returns the directory the files of a background are stored in. It isn't created, so it can
+     * be used to read a background that might have been evicted.
+     *
+     * @param hash the hash of the background
+     * @return the directory of the background
+     */
+    public File getDirectory(String hash) {
+        checkHash(hash);
+        return new File(mDirectory, hash);
+    }
+
+    /**
+     * Creates the directory the files of a background are going to be stored in. The background
+     * isn't part of the library until {@link #add(String)} is called, and the directory is
+     * deleted by the next trim if it never is.
+     *
+     * @param hash the hash of the background
+     * @return the directory of the background
+     */
+    public File createDirectory(String hash) {
+        File directory = getDirectory(hash);
+        if (!directory.exists()) {
+            directory.mkdirs();
+        }
+        return directory;
+    }
+
+    /**
+     * @param hash the hash of the background
+     * @return true if the background is stored in the library
+     */
+    public synchronized boolean contains(String hash) {
+        checkHash(hash);
+        return mPreferences.contains(hash) && new File(mDirectory, hash).isDirectory();
+    }
+
+    /**
+     * Adds a background whose files are already stored in its directory, marking it as the most
+     * recently used, and deletes the least recently used backgrounds until the library fits its
+     * size limit. The background being added is never deleted. The directories of backgrounds
+     * that were never added, like the ones of downloads interrupted when the process died, are
+     * deleted too, so it must only be called from the thread that stores the backgrounds.
+     *
+     * @param hash the hash of the background
+     */
+    public synchronized void add(String hash) {
+        checkHash(hash);
+        mPreferences.edit().putLong(hash, System.currentTimeMillis()).commit();
+        trim(hash);
+    }
+
+    /**
+     * Marks a background as the most recently used.
+     *
+     * @param hash the hash of the background
+     */
+    public synchronized void touch(String hash) {
+        checkHash(hash);
+        if (mPreferences.contains(hash)) {
+            mPreferences.edit().putLong(hash, System.currentTimeMillis()).apply();
+        }
+    }
+
+    /**
+     * Deletes a background and its files.
+     *
+     * @param hash the hash of the background
+     */
+    public synchronized void remove(String hash) {
+        checkHash(hash);
+        mPreferences.edit().remove(hash).commit();
+        deleteRecursively(new File(mDirectory, hash));
+    }
+
+    /**
+     * @return the hashes of the backgrounds in the library
+     */
+    public synchronized ArrayList<String> getHashes() {
+        return new ArrayList<String>(mPreferences.getAll().keySet());
+    }
+
+    /**
+     * @param hash the hash of a background
+     * @return true if the hash is a non-empty hexadecimal string, the only names the directories
+     * of the library can have
+     */
+    public static boolean isValidHash(String hash) {
+        if (hash == null || hash.isEmpty()) {
+            return false;
+        }
+        for (int i = 0; i < hash.length(); i++) {
+            char c = hash.charAt(i);
+            if ((c < '0' || c > '9') && (c < 'a' || c > 'f') && (c < 'A' || c > 'F')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // The hash is used as a file name, anything else could point outside the library
+    private static void checkHash(String hash) {
+        if (!isValidHash(hash)) {
+            throw new IllegalArgumentException("Hash must be hexadecimal: " + hash);
+        }
+    }
+
+    private void trim(String keep) {
+        Map<String, ?> entries = mPreferences.getAll();
+        File[] directories = mDirectory.listFiles();
+        if (directories != null) {
+            for (File directory : directories) {
+                String name = directory.getName();
+                if (!name.equals(keep) && !entries.containsKey(name)) {
+                    deleteRecursively(directory);
+                }
+            }
+        }
+        long size = 0;
+        for (String hash : entries.keySet()) {
+            size += getSize(new File(mDirectory, hash));
+        }
+        while (size > MAX_SIZE_BYTES) {
+            String oldest = null;
+            long oldestTime = Long.MAX_VALUE;
+            for (Map.Entry<String, ?> entry : entries.entrySet()) {
+                long time = entry.getValue() instanceof Long ? (Long) entry.getValue() : 0;
+                if (!entry.getKey().equals(keep) && time < oldestTime) {
+                    oldest = entry.getKey();
+                    oldestTime = time;
+                }
+            }
+            if (oldest == null) {
+                break;
+            }
+            File directory = new File(mDirectory, oldest);
+            size -= getSize(directory);
+            entries.remove(oldest);
+            mPreferences.edit().remove(oldest).commit();
+            deleteRecursively(directory);
+        }
+    }
+
+    private static long getSize(File file) {
+        File[] files = file.listFiles();
+        if (files == null) {
+            return file.length();
+        }
+        long size = 0;
+        for (File child : files) {
+            size += getSize(child);
+        }
+        return size;
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File child : files) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+
+}
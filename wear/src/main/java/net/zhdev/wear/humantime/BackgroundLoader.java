@@ -0,0 +1,209 @@
+/*
+ * Copyright 2014 Julio García Muñoz (ZhDev)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.zhdev.wear.humantime;
+
+import net.zhdev.wear.humantime.shared.Constants;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Point;
+import android.os.AsyncTask;
+
+import java.io.File;
+
+/**
+ * <p><code>BackgroundLoader</code> loads the background image on a worker thread and posts the
+ * result back to the main thread.</p>
+ *
+ * <p>A load is given a list of background variants, tried in order until one of them is
+ * available. For each variant the raw background is used when available. Otherwise the image
+ * file is decoded with the sample size and config that match the display, so no more memory than
+ * needed is used. Only the last requested load is delivered: starting a new one cancels the
+ * previous, including a decode in progress.</p>
+ *
+ * <p>The bitmaps are taken from a {@link BitmapPool} when possible, so the background that was
+ * displayed before is reused for the new one.</p>
+ *
+ * @author Julio García Muñoz (ZhDev)
+ */
+public class BackgroundLoader {
+
+    private final Context mContext;
+
+    private final BitmapPool mPool;
+
+    private final Callback mCallback;
+
+    private LoadTask mTask;
+
+    public BackgroundLoader(Context context, BitmapPool pool, Callback callback) {
+        if (pool == null || callback == null) {
+            throw new IllegalArgumentException("Pool and callback must be non-null");
+        }
+        mContext = context.getApplicationContext();
+        mPool = pool;
+        mCallback = callback;
+    }
+
+    /**
+     * Starts loading a background, cancelling any load in progress. Must be called from the main
+     * thread.
+     *
+     * @param directory the directory of the background in the {@link BackgroundLibrary}
+     * @param key       identifies what is loaded, it's passed back to the callback
+     * @param variants  the <code>BACKGROUND_VARIANT_</code> constants to try, in order
+     */
+    public void load(File directory, String key, String... variants) {
+        cancel();
+        mTask = new LoadTask(directory, key, variants);
+        mTask.execute();
+    }
+
+    /**
+     * Cancels the load in progress, if any. Its result won't be delivered.
+     */
+    public void cancel() {
+        if (mTask != null) {
+            mTask.cancelDecode();
+            mTask = null;
+        }
+    }
+
+    /**
+     * Computes the largest power of two sample size that keeps the image at least as big as the
+     * display.
+     */
+    private static int computeSampleSize(int width, int height, int displayWidth,
+            int displayHeight) {
+        int sampleSize = 1;
+        while (width / (sampleSize * 2) >= displayWidth
+                && height / (sampleSize * 2) >= displayHeight) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    private Bitmap decode(File directory, String variant, BitmapFactory.Options options) {
+        File file = new File(directory, Constants.getBackgroundFileName(variant));
+        if (!file.exists()) {
+            return null;
+        }
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(file.getPath(), options);
+        if (options.mCancel || options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
+        Point size = RawBackground.getDisplaySize(mContext);
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = computeSampleSize(options.outWidth, options.outHeight, size.x,
+                size.y);
+        options.inPreferredConfig = RawBackground.getConfig(mContext);
+        options.inMutable = true;
+        int width = (options.outWidth + options.inSampleSize - 1) / options.inSampleSize;
+        int height = (options.outHeight + options.inSampleSize - 1) / options.inSampleSize;
+        options.inBitmap = mPool.get(width, height, options.inPreferredConfig);
+        Bitmap bitmap;
+        try {
+            bitmap = BitmapFactory.decodeFile(file.getPath(), options);
+        } catch (IllegalArgumentException e) {
+            // The pooled bitmap can't be used for this image
+            mPool.put(options.inBitmap);
+            options.inBitmap = null;
+            bitmap = BitmapFactory.decodeFile(file.getPath(), options);
+        }
+        if (bitmap == null) {
+            mPool.put(options.inBitmap);
+        }
+        options.inBitmap = null;
+        return bitmap;
+    }
+
+    private class LoadTask extends AsyncTask<Void, Void, Bitmap> {
+
+        private final File mDirectory;
+
+        private final String mKey;
+
+        private final String[] mVariants;
+
+        private final BitmapFactory.Options mOptions = new BitmapFactory.Options();
+
+        public LoadTask(File directory, String key, String[] variants) {
+            mDirectory = directory;
+            mKey = key;
+            mVariants = variants;
+        }
+
+        public void cancelDecode() {
+            cancel(false);
+            mOptions.requestCancelDecode();
+        }
+
+        @Override
+        protected Bitmap doInBackground(Void... params) {
+            Bitmap bitmap = null;
+            for (int i = 0; i < mVariants.length && bitmap == null && !isCancelled(); i++) {
+                bitmap = RawBackground.read(mContext, mDirectory, mVariants[i], mPool);
+                if (bitmap == null && !isCancelled()) {
+                    bitmap = decode(mDirectory, mVariants[i], mOptions);
+                }
+            }
+            return bitmap;
+        }
+
+        @Override
+        protected void onPostExecute(Bitmap bitmap) {
+            if (mTask != this) {
+                return;
+            }
+            mTask = null;
+            if (bitmap != null) {
+                mCallback.onBackgroundLoaded(BackgroundLoader.this, mKey, bitmap);
+            } else {
+                mCallback.onBackgroundFailed(BackgroundLoader.this, mKey);
+            }
+        }
+
+        @Override
+        protected void onCancelled(Bitmap bitmap) {
+            mPool.put(bitmap);
+        }
+    }
+
+    /**
+     * Receives the result of a load, on the main thread.
+     */
+    public interface Callback {
+
+        /**
+         * @param loader the loader that loaded the background
+         * @param key    the key of the load
+         * @param bitmap the loaded background
+         */
+        void onBackgroundLoaded(BackgroundLoader loader, String key, Bitmap bitmap);
+
+        /**
+         * Called when none of the variants is available or they couldn't be decoded.
+         *
+         * @param loader the loader that tried to load the background
+         * @param key    the key of the load
+         */
+        void onBackgroundFailed(BackgroundLoader loader, String key);
+    }
+
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright 2014 Julio García Muñoz (ZhDev)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.zhdev.wear.humantime;
+
+import android.graphics.Bitmap;
+
+/**
+ * <p><code>BitmapPool</code> keeps background bitmaps that are no longer displayed, so the next
+ * background can be decoded into their memory instead of allocating a new bitmap.</p>
+ *
+ * <p>The pool holds a single bitmap: together with the displayed background, that's all the
+ * memory needed while a new background is loaded. A bitmap that doesn't fit a request is recycled
+ * right away instead of being kept alongside the new allocation. The pool is accessed from the
+ * main thread and from the loading thread, so every method is synchronized.</p>
+ *
+ * @author Julio García Muñoz (ZhDev)
+ */
+public class BitmapPool {
+
+    private Bitmap mBitmap;
+
+    /**
+     * Takes a bitmap from the pool that can hold an image of the given size and config.
+     *
+     * @return a mutable bitmap whose allocation is big enough, or null if there isn't one. The
+     * bitmap may have to be reconfigured to the exact size before using it
+     */
+    public synchronized Bitmap get(int width, int height, Bitmap.Config config) {
+        Bitmap bitmap = mBitmap;
+        mBitmap = null;
+        if (bitmap == null) {
+            return null;
+        }
+        if (bitmap.getAllocationByteCount() < width * height * getBytesPerPixel(config)) {
+            bitmap.recycle();
+            return null;
+        }
+        return bitmap;
+    }
+
+    /**
+     * Returns a bitmap to the pool. It must not be displayed anymore. If the pool is full the
+     * bitmap is recycled.
+     *
+     * @param bitmap the bitmap to return, it can be null
+     */
+    public synchronized void put(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled()) {
+            return;
+        }
+        if (mBitmap != null || !bitmap.isMutable()) {
+            bitmap.recycle();
+            return;
+        }
+        mBitmap = bitmap;
+    }
+
+    /**
+     * Recycles the bitmap in the pool, if any.
+     */
+    public synchronized void clear() {
+        if (mBitmap != null) {
+            mBitmap.recycle();
+            mBitmap = null;
+        }
+    }
+
+    private static int getBytesPerPixel(Bitmap.Config config) {
+        switch (config) {
+            case ALPHA_8:
+                return 1;
+            case RGB_565:
+            case ARGB_4444:
+                return 2;
+            default:
+                return 4;
+        }
+    }
+
+}
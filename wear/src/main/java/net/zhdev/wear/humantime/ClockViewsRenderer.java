@@ -0,0 +1,155 @@
+/*
+ * Copyright 2014 Julio García Muñoz (ZhDev)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.zhdev.wear.humantime;
+
+import android.graphics.Color;
+import android.graphics.Typeface;
+import android.graphics.drawable.Drawable;
+import android.util.TypedValue;
+import android.view.View;
+import android.widget.LinearLayout;
+import android.widget.TextView;
+
+/**
+ * <p><code>ClockViewsRenderer</code> displays the watch face with a hierarchy of views: a
+ * <code>LinearLayout</code> holding the background and the gravity of the texts, a
+ * {@link ShortDateClock} and a {@link HumanTextClock}.</p>
+ *
+ * @author Julio García Muñoz (ZhDev)
+ */
+public class ClockViewsRenderer implements WatchFaceRenderer {
+
+    private final LinearLayout mWatchContainer;
+
+    private final HumanTextClock mWatchTime;
+
+    private final ShortDateClock mWatchDate;
+
+    private Drawable mBackground;
+
+    private Drawable mAmbientBackground;
+
+    private int mTextColor;
+
+    private boolean mTextShadow;
+
+    private boolean mAmbient;
+
+    /**
+     * @param watchView the view inflated from <code>activity_watch_face.xml</code>
+     */
+    public ClockViewsRenderer(View watchView) {
+        mWatchContainer = (LinearLayout) watchView.findViewById(R.id.watch_view);
+        mWatchTime = (HumanTextClock) watchView.findViewById(R.id.watch_time);
+        mWatchDate = (ShortDateClock) watchView.findViewById(R.id.watch_date);
+        mTextColor = Color.WHITE;
+    }
+
+    private static void shadowVisible(TextView textView, boolean visible) {
+        if (visible) {
+            textView.setShadowLayer(3.0F, 3.0F, 3.0F, Color.BLACK);
+        } else {
+            textView.setShadowLayer(0.0F, 0.0F, 0.0F, 0x00000000);
+        }
+    }
+
+    @Override
+    public void setFaceBackground(Drawable background) {
+        mBackground = background;
+        if (!mAmbient) {
+            mWatchContainer.setBackground(background);
+        }
+    }
+
+    @Override
+    public void setAmbientBackground(Drawable background) {
+        mAmbientBackground = background;
+        if (mAmbient) {
+            mWatchContainer.setBackground(background);
+        }
+    }
+
+    @Override
+    public void setTextColor(int color) {
+        mTextColor = color;
+        if (!mAmbient) {
+            mWatchTime.setTextColor(color);
+            mWatchDate.setTextColor(color);
+        }
+    }
+
+    @Override
+    public void setTextShadow(boolean visible) {
+        mTextShadow = visible;
+        if (!mAmbient) {
+            shadowVisible(mWatchTime, visible);
+            shadowVisible(mWatchDate, visible);
+        }
+    }
+
+    @Override
+    public void setTextSize(float size) {
+        mWatchTime.setTextSize(TypedValue.COMPLEX_UNIT_SP, size);
+    }
+
+    @Override
+    public void setTextPosition(int gravity) {
+        mWatchTime.setGravity(gravity);
+        mWatchDate.setGravity(gravity);
+        mWatchContainer.setGravity(gravity);
+    }
+
+    @Override
+    public void setTextCase(int textCase) {
+        mWatchTime.setTextCase(textCase);
+    }
+
+    @Override
+    public void setTypeface(Typeface typeface, String typefaceKey) {
+        mWatchTime.setTypeface(typeface);
+        mWatchTime.setTypefaceKey(typefaceKey);
+        mWatchTime.refreshText();
+        mWatchDate.setTypeface(typeface);
+        mWatchDate.setTypefaceKey(typefaceKey);
+        mWatchDate.refreshText();
+    }
+
+    @Override
+    public void setDateVisible(boolean visible) {
+        mWatchDate.setVisibility(visible ? View.VISIBLE : View.GONE);
+    }
+
+    @Override
+    public void setAmbientMode(boolean ambient) {
+        if (ambient == mAmbient) {
+            return;
+        }
+        mAmbient = ambient;
+        int textColor = ambient ? Color.WHITE : mTextColor;
+        boolean textShadow = !ambient && mTextShadow;
+        mWatchContainer.setBackground(ambient ? mAmbientBackground : mBackground);
+        mWatchTime.setTextColor(textColor);
+        mWatchDate.setTextColor(textColor);
+        shadowVisible(mWatchTime, textShadow);
+        shadowVisible(mWatchDate, textShadow);
+        mWatchTime.setAnimationsEnabled(!ambient);
+        mWatchDate.setAnimationsEnabled(!ambient);
+        mWatchTime.setAmbientMode(ambient);
+        mWatchDate.setAmbientMode(ambient);
+    }
+
+}
@@ -16,27 +16,16 @@
 
 package net.zhdev.wear.humantime;
 
-import com.google.android.gms.common.ConnectionResult;
-import com.google.android.gms.common.api.GoogleApiClient;
-import com.google.android.gms.wearable.Asset;
 import com.google.android.gms.wearable.DataEvent;
 import com.google.android.gms.wearable.DataEventBuffer;
 import com.google.android.gms.wearable.DataItem;
 import com.google.android.gms.wearable.DataMap;
 import com.google.android.gms.wearable.DataMapItem;
-import com.google.android.gms.wearable.Wearable;
 import com.google.android.gms.wearable.WearableListenerService;
 
 import net.zhdev.wear.humantime.shared.Constants;
 
-import android.content.SharedPreferences;
-import android.graphics.Color;
-
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.io.InputStream;
-import java.util.concurrent.TimeUnit;
+import android.util.Log;
 
 /**
  * <code>DataLayerListenerService</code> is a service that automatically binds and listens for
@@ -46,119 +35,64 @@ import java.util.concurrent.TimeUnit;
  */
 public class DataLayerListenerService extends WearableListenerService {
 
-    private static final int TIMEOUT_MS = 5000;
-
-    private GoogleApiClient mGoogleApiClient;
-
-    @Override
-    public void onCreate() {
-        super.onCreate();
-        mGoogleApiClient = new GoogleApiClient.Builder(this)
-                .addApi(Wearable.API)
-                .build();
-    }
-
     @Override
     public void onDataChanged(DataEventBuffer dataEvents) {
+        // All the changes of the buffer are written at once, so the watch face is only notified
+        // once even when the whole configuration is restored
+        PreferenceBatch batch = new PreferenceBatch(getSharedPreferences(Constants.PREFS_NAME,
+                MODE_PRIVATE));
         for (DataEvent event : dataEvents) {
             // Every time a data path is changed the listener retrieves the data and updates the
             // stored preferences
             if (event.getType() == DataEvent.TYPE_CHANGED) {
-                SharedPreferences preferences = getSharedPreferences(Constants.PREFS_NAME,
-                        MODE_PRIVATE);
-                SharedPreferences.Editor editor = preferences.edit();
                 DataItem dataItem = event.getDataItem();
                 DataMap dataMap = DataMapItem.fromDataItem(dataItem).getDataMap();
                 String uriPath = dataItem.getUri().getPath();
 
-                if (Constants.BACKGROUND_COLOR_PATH.equals(uriPath)) {
-                    int color = dataMap.getInt(Constants.BACKGROUND_COLOR_KEY);
-                    editor.putInt(Constants.BACKGROUND_COLOR_KEY, color);
-                    editor.putInt(Constants.BACKGROUND_TYPE_KEY, Constants.BACKGROUND_TYPE_COLOR);
+                if (Constants.CONFIG_PATH.equals(uriPath)) {
+                    putConfig(dataMap, batch);
                 } else if (Constants.BACKGROUND_ASSET_PATH.equals(uriPath)) {
-                    Asset asset = dataMap.getAsset(Constants.BACKGROUND_ASSET_KEY);
-                    boolean fileSaved = saveFileFromAsset(asset);
-                    if (fileSaved) {
-                        editor.putLong(Constants.BACKGROUND_ASSET_LAST_CHANGED_KEY,
-                                System.currentTimeMillis());
-                        editor.putInt(Constants.BACKGROUND_TYPE_KEY,
-                                Constants.BACKGROUND_TYPE_IMAGE);
-                    } else {
-                        editor.putInt(Constants.BACKGROUND_COLOR_KEY, Color.BLACK);
-                        editor.putInt(Constants.BACKGROUND_TYPE_KEY,
-                                Constants.BACKGROUND_TYPE_COLOR);
-                    }
-
-                } else if (Constants.TEXT_COLOR_PATH.equals(uriPath)) {
-                    int color = dataMap.getInt(Constants.TEXT_COLOR_KEY);
-                    editor.putInt(Constants.TEXT_COLOR_KEY, color);
-                } else if (Constants.TEXT_STYLE_PATH.equals(uriPath)) {
-                    int style = dataMap.getInt(Constants.TEXT_STYLE_KEY);
-                    editor.putInt(Constants.TEXT_STYLE_KEY, style);
-                } else if (Constants.TEXT_SHADOW_PATH.equals(uriPath)) {
-                    boolean showShadow = dataMap.getBoolean(Constants.TEXT_SHADOW_KEY);
-                    editor.putBoolean(Constants.TEXT_SHADOW_KEY, showShadow);
-                } else if (Constants.TEXT_SIZE_PATH.equals(uriPath)) {
-                    float size = dataMap.getFloat(Constants.TEXT_SIZE_KEY);
-                    editor.putFloat(Constants.TEXT_SIZE_KEY, size);
-                } else if (Constants.TEXT_POSITION_PATH.equals(uriPath)) {
-                    int position = dataMap.getInt(Constants.TEXT_POSITION_KEY);
-                    editor.putInt(Constants.TEXT_POSITION_KEY, position);
-                } else if (Constants.TEXT_CASE_PATH.equals(uriPath)) {
-                    int textCase = dataMap.getInt(Constants.TEXT_CASE_KEY);
-                    editor.putInt(Constants.TEXT_CASE_KEY, textCase);
-                } else if (Constants.TEXT_FONT_PATH.equals(uriPath)) {
-                    String textFontCode = dataMap.getString(Constants.TEXT_FONT_KEY);
-                    editor.putString(Constants.TEXT_FONT_KEY, textFontCode);
-                } else if (Constants.DATE_PATH.equals(uriPath)) {
-                    boolean showDate = dataMap.getBoolean(Constants.DATE_KEY);
-                    editor.putBoolean(Constants.DATE_KEY, showDate);
+                    // The images are stored on their own thread, so the rest of the settings
+                    // don't wait for the transfer
+                    BackgroundIngestService.ingest(this, uriPath, dataMap);
+                }
+            } else if (event.getType() == DataEvent.TYPE_DELETED) {
+                String uriPath = event.getDataItem().getUri().getPath();
+                if (Constants.BACKGROUND_ASSET_PATH.equals(uriPath)) {
+                    // The handheld deletes the background when a color is selected, a download
+                    // still pending must not replace it once it finishes
+                    BackgroundIngestService.discard(this, uriPath);
                 }
-
-                editor.apply();
             }
         }
+        batch.apply();
     }
 
-
     /**
-     * Saves into persistent memory an asset existing in the Wear Data Layer
+     * Adds every setting of the configuration sent by the handheld to a batch, in a single pass.
      *
-     * @param asset the <code>Asset</code> that will be saves into a file
-     * @return true if the asset was correctly retrieved and stored, false otherwise
+     * @param dataMap the data map of the configuration
+     * @param batch   the batch the settings are added to
      */
-    private boolean saveFileFromAsset(Asset asset) {
-        if (asset == null) {
-            throw new IllegalArgumentException("Asset must be non-null");
-        }
-        ConnectionResult result = mGoogleApiClient
-                .blockingConnect(TIMEOUT_MS, TimeUnit.MILLISECONDS);
-        if (!result.isSuccess()) {
-            return false;
-        }
-
-        InputStream assetInputStream = Wearable.DataApi.getFdForAsset(mGoogleApiClient, asset)
-                .await().getInputStream();
-        mGoogleApiClient.disconnect();
-
-        if (assetInputStream == null) {
-            return false;
+    private static void putConfig(DataMap dataMap, PreferenceBatch batch) {
+        int version = dataMap.getInt(Constants.CONFIG_VERSION_KEY);
+        if (version > Constants.CONFIG_VERSION) {
+            // The known settings are still read, the handheld keeps their meaning
+            Log.w("Human Time", "Received a newer configuration: " + version);
         }
-        FileOutputStream fileOutputStream;
-        try {
-            fileOutputStream = openFileOutput(Constants.BACKGROUND_ASSET_FILE_NAME, MODE_PRIVATE);
-            byte[] buffer = new byte[4096];
-            int bytes;
-            while ((bytes = assetInputStream.read(buffer)) > 0) {
-                fileOutputStream.write(buffer, 0, bytes);
+        for (String key : Constants.CONFIG_KEYS) {
+            Object value = dataMap.get(key);
+            if (value == null) {
+                continue;
             }
-        } catch (FileNotFoundException e) {
-            return false;
-        } catch (IOException e) {
-            return false;
+            // An image only becomes the background once it has been stored, which is done by
+            // the BackgroundIngestService
+            if (Constants.BACKGROUND_TYPE_KEY.equals(key)
+                    && value.equals(Constants.BACKGROUND_TYPE_IMAGE)) {
+                continue;
+            }
+            batch.put(key, value);
         }
-
-        return true;
     }
 
 }
@@ -0,0 +1,105 @@
+/*
+ * Copyright 2014 Julio García Muñoz (ZhDev)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.zhdev.wear.humantime;
+
+import com.google.android.gms.common.ConnectionResult;
+import com.google.android.gms.common.api.GoogleApiClient;
+import com.google.android.gms.common.api.ResultCallback;
+import com.google.android.gms.wearable.DataApi;
+import com.google.android.gms.wearable.PutDataMapRequest;
+import com.google.android.gms.wearable.Wearable;
+
+import net.zhdev.wear.humantime.shared.Constants;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.graphics.Point;
+import android.os.Bundle;
+
+/**
+ * <p><code>DisplayInfoPublisher</code> tells the handheld the size of the display of the watch,
+ * storing it in the Wear Data Layer at {@link Constants#DISPLAY_PATH}. The handheld uses it to
+ * prepare the background images already sized for each connected watch.</p>
+ *
+ * <p>The size is only published again when it differs from the last one published.</p>
+ *
+ * @author Julio García Muñoz (ZhDev)
+ */
+public final class DisplayInfoPublisher {
+
+    private static final String PUBLISHED_SIZE_KEY = "published_display_size";
+
+    private DisplayInfoPublisher() {
+
+    }
+
+    /**
+     * Publishes the display size if it hasn't been published yet. The call returns immediately,
+     * the data is sent in the background.
+     *
+     * @param context the context used to get the display size and connect to the Wear API
+     */
+    public static void publish(Context context) {
+        final Point size = RawBackground.getDisplaySize(context);
+        final String sizeText = size.x + "x" + size.y;
+        final SharedPreferences preferences = context
+                .getSharedPreferences(Constants.PREFS_NAME, Context.MODE_PRIVATE);
+        if (sizeText.equals(preferences.getString(PUBLISHED_SIZE_KEY, null))) {
+            return;
+        }
+
+        final GoogleApiClient googleApiClient = new GoogleApiClient.Builder(context)
+                .addApi(Wearable.API)
+                .build();
+        googleApiClient.registerConnectionCallbacks(new GoogleApiClient.ConnectionCallbacks() {
+            @Override
+            public void onConnected(Bundle connectionHint) {
+                PutDataMapRequest putDataMapRequest = PutDataMapRequest
+                        .create(Constants.DISPLAY_PATH);
+                putDataMapRequest.getDataMap().putInt(Constants.DISPLAY_WIDTH_KEY, size.x);
+                putDataMapRequest.getDataMap().putInt(Constants.DISPLAY_HEIGHT_KEY, size.y);
+                Wearable.DataApi.putDataItem(googleApiClient,
+                        putDataMapRequest.asPutDataRequest())
+                        .setResultCallback(new ResultCallback<DataApi.DataItemResult>() {
+                            @Override
+                            public void onResult(DataApi.DataItemResult result) {
+                                if (result.getStatus().isSuccess()) {
+                                    preferences.edit()
+                                            .putString(PUBLISHED_SIZE_KEY, sizeText)
+                                            .apply();
+                                }
+                                googleApiClient.disconnect();
+                            }
+                        });
+            }
+
+            @Override
+            public void onConnectionSuspended(int cause) {
+
+            }
+        });
+        googleApiClient.registerConnectionFailedListener(
+                new GoogleApiClient.OnConnectionFailedListener() {
+                    @Override
+                    public void onConnectionFailed(ConnectionResult result) {
+                        // It will be tried again the next time the watch face is created
+                    }
+                });
+        googleApiClient.connect();
+    }
+
+}
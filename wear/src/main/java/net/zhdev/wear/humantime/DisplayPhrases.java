@@ -0,0 +1,104 @@
+/*
+ * Copyright 2014 Julio García Muñoz (ZhDev)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.zhdev.wear.humantime;
+
+import net.zhdev.wear.humantime.shared.Constants;
+
+import android.content.res.Configuration;
+import android.content.res.Resources;
+
+/**
+ * <p><code>DisplayPhrases</code> holds the phrases of a {@link TimeConverter} ready to be
+ * displayed: broken into one line per word and in the selected text case.</p>
+ *
+ * <p>The phrases are prepared once, and reused until the locale or the text case changes, so
+ * getting the phrase for a time doesn't allocate.</p>
+ *
+ * @author Julio García Muñoz (ZhDev)
+ */
+public class DisplayPhrases {
+
+    private final TimeConverter mTimeConverter;
+
+    private final String[] mPhrases = new String[TimeConverter.PHRASE_COUNT];
+
+    private int mTextCase;
+
+    private int mPhrasesVersion;
+
+    private int mPhrasesCase;
+
+    public DisplayPhrases(Resources resources) {
+        mTimeConverter = new TimeConverter(resources);
+        mTextCase = Constants.TEXT_CASE_NO_CAPS;
+    }
+
+    private static String setCorrectCase(String text, int textCase) {
+        if (text == null || text.isEmpty()) {
+            throw new IllegalArgumentException("Invalid text");
+        }
+        switch (textCase) {
+            case Constants.TEXT_CASE_NO_CAPS:
+                return text.toLowerCase();
+            case Constants.TEXT_CASE_ALL_CAPS:
+                return text.toUpperCase();
+            case Constants.TEXT_CASE_FIRST_CAP:
+                return text.substring(0, 1).toUpperCase() + text.substring(1);
+            default:
+                return text;
+        }
+    }
+
+    private void preparePhrases() {
+        int version = mTimeConverter.getTableVersion();
+        if (mPhrases[0] != null && mPhrasesVersion == version && mPhrasesCase == mTextCase) {
+            return;
+        }
+        for (int i = 0; i < TimeConverter.PHRASE_COUNT; i++) {
+            String time = mTimeConverter.getPhrase(i).replace(' ', '\n');
+            mPhrases[i] = setCorrectCase(time, mTextCase);
+        }
+        mPhrasesVersion = version;
+        mPhrasesCase = mTextCase;
+    }
+
+    /**
+     * @param index an index as returned by {@link TimeConverter#getPhraseIndex(int, int)}
+     * @return the phrase ready to be displayed
+     */
+    public String get(int index) {
+        preparePhrases();
+        return mPhrases[index];
+    }
+
+    /**
+     * Rebuilds the phrases if the locale changed.
+     *
+     * @param newConfig the new device configuration
+     */
+    public void onConfigurationChanged(Configuration newConfig) {
+        mTimeConverter.onConfigurationChanged(newConfig);
+    }
+
+    /**
+     * @see net.zhdev.wear.humantime.shared.Constants
+     */
+    public void setTextCase(int textCase) {
+        mTextCase = textCase;
+    }
+
+}
@@ -16,25 +16,23 @@
 
 package net.zhdev.wear.humantime;
 
-import net.zhdev.wear.humantime.shared.Constants;
-
 import android.content.Context;
+import android.content.res.Configuration;
 import android.util.AttributeSet;
 
-import java.util.Calendar;
-
 /**
- * <code>HumanTextClock</code> is a clock that displays the time in a "human way", representing the
- * time as a text string such as "quarter to
- * five".
+ * <p><code>HumanTextClock</code> is a clock that displays the time in a "human way", representing
+ * the time as a text string such as "quarter to
+ * five".</p>
+ *
+ * <p>The phrases are taken from {@link DisplayPhrases}, already broken into lines and in the right
+ * case.</p>
  *
  * @author Julio García Muñoz (ZhDev)
  */
 public class HumanTextClock extends AutoFitTextClock {
 
-    private TimeConverter mTimeConverter;
-
-    private int mTextCase;
+    private DisplayPhrases mPhrases;
 
     public HumanTextClock(Context context) {
         this(context, null);
@@ -46,40 +44,37 @@ public class HumanTextClock extends AutoFitTextClock {
 
     public HumanTextClock(Context context, AttributeSet attrs, int defStyle) {
         super(context, attrs, defStyle);
-        mTimeConverter = new TimeConverter(context.getResources());
-        mTextCase = Constants.TEXT_CASE_NO_CAPS;
+        mPhrases = new DisplayPhrases(context.getResources());
+    }
+
+    @Override
+    protected long getUpdatePeriod() {
+        return 5 * TimeSnapshot.MINUTE_MILLIS;
     }
 
-    private static String setCorrectCase(String text, int textCase) {
-        if (text == null || text.isEmpty()) {
-            throw new IllegalArgumentException("Invalid text");
-        }
-        switch (textCase) {
-            case Constants.TEXT_CASE_NO_CAPS:
-                return text.toLowerCase();
-            case Constants.TEXT_CASE_ALL_CAPS:
-                return text.toUpperCase();
-            case Constants.TEXT_CASE_FIRST_CAP:
-                return text.substring(0, 1).toUpperCase() + text.substring(1);
-            default:
-                return text;
-        }
+    @Override
+    protected long getUpdatePhase() {
+        // The minutes are rounded to the nearest multiple of 5, so the text changes 3 minutes
+        // after each multiple
+        return 3 * TimeSnapshot.MINUTE_MILLIS;
     }
 
     @Override
-    protected String getDateTimeText(Calendar calendar) {
-        String time = mTimeConverter
-                .convertTime(calendar.get(Calendar.HOUR), calendar.get(Calendar.MINUTE))
-                .replace(' ', '\n');
+    protected String getDateTimeText(TransitionSchedule schedule) {
+        return mPhrases.get(schedule.getPhraseIndex());
+    }
 
-        return setCorrectCase(time, mTextCase);
+    @Override
+    protected void onConfigurationChanged(Configuration newConfig) {
+        super.onConfigurationChanged(newConfig);
+        mPhrases.onConfigurationChanged(newConfig);
     }
 
     /**
      * @see net.zhdev.wear.humantime.shared.Constants
      */
     public void setTextCase(int textCase) {
-        mTextCase = textCase;
+        mPhrases.setTextCase(textCase);
     }
 
 
@@ -0,0 +1,160 @@
+/*
+ * Copyright 2014 Julio García Muñoz (ZhDev)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.zhdev.wear.humantime;
+
+import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * <p><code>PreferenceBatch</code> folds several changes of the settings into a single write of
+ * the preferences and a single notification to the UI.</p>
+ *
+ * <p>The changes are collected in memory, a later value for a key replacing an earlier one. When
+ * the batch is applied, the values equal to the stored ones are discarded, the rest are written
+ * with one editor and the attached {@link Listener}s are notified once, on the main thread, with
+ * the set of keys that changed. Batches can be applied from any thread.</p>
+ *
+ * @author Julio García Muñoz (ZhDev)
+ */
+public class PreferenceBatch {
+
+    private static final Object sLock = new Object();
+
+    private static final Handler sHandler = new Handler(Looper.getMainLooper());
+
+    private static final List<Listener> sListeners = new ArrayList<Listener>();
+
+    private final SharedPreferences mPreferences;
+
+    private final Map<String, Object> mChanges = new HashMap<String, Object>();
+
+    public PreferenceBatch(SharedPreferences preferences) {
+        if (preferences == null) {
+            throw new IllegalArgumentException("Preferences must be non-null");
+        }
+        mPreferences = preferences;
+    }
+
+    /**
+     * Starts notifying a listener of the applied batches. Must be called from the main thread.
+     *
+     * @param listener the listener to add
+     */
+    public static void addListener(Listener listener) {
+        if (!sListeners.contains(listener)) {
+            sListeners.add(listener);
+        }
+    }
+
+    /**
+     * Stops notifying a listener. Must be called from the main thread.
+     *
+     * @param listener the listener to remove
+     */
+    public static void removeListener(Listener listener) {
+        sListeners.remove(listener);
+    }
+
+    /**
+     * Adds a change to the batch.
+     *
+     * @param key   the key of the preference
+     * @param value an <code>Integer</code>, <code>Long</code>, <code>Float</code>,
+     *              <code>Boolean</code> or <code>String</code>
+     * @return this batch
+     */
+    public PreferenceBatch put(String key, Object value) {
+        if (!(value instanceof Integer || value instanceof Long || value instanceof Float
+                || value instanceof Boolean || value instanceof String)) {
+            throw new IllegalArgumentException("Invalid value: " + value);
+        }
+        mChanges.put(key, value);
+        return this;
+    }
+
+    /**
+     * Writes the changes that differ from the stored values and notifies the listeners. The batch
+     * is empty afterwards.
+     *
+     * @return true if any value changed, false otherwise
+     */
+    public boolean apply() {
+        final Set<String> changedKeys = new HashSet<String>();
+        synchronized (sLock) {
+            Map<String, ?> stored = mPreferences.getAll();
+            SharedPreferences.Editor editor = mPreferences.edit();
+            for (Map.Entry<String, Object> change : mChanges.entrySet()) {
+                String key = change.getKey();
+                Object value = change.getValue();
+                if (value.equals(stored.get(key))) {
+                    continue;
+                }
+                if (value instanceof Integer) {
+                    editor.putInt(key, (Integer) value);
+                } else if (value instanceof Long) {
+                    editor.putLong(key, (Long) value);
+                } else if (value instanceof Float) {
+                    editor.putFloat(key, (Float) value);
+                } else if (value instanceof Boolean) {
+                    editor.putBoolean(key, (Boolean) value);
+                } else {
+                    editor.putString(key, (String) value);
+                }
+                changedKeys.add(key);
+            }
+            mChanges.clear();
+            if (changedKeys.isEmpty()) {
+                return false;
+            }
+            editor.apply();
+        }
+        sHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                Set<String> keys = Collections.unmodifiableSet(changedKeys);
+                for (int i = 0; i < sListeners.size(); i++) {
+                    sListeners.get(i).onPreferencesChanged(mPreferences, keys);
+                }
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Receives the batches of changes applied to the preferences.
+     */
+    public interface Listener {
+
+        /**
+         * Called on the main thread once per applied batch.
+         *
+         * @param preferences the preferences, with the changes already applied
+         * @param keys        the keys whose values changed
+         */
+        void onPreferencesChanged(SharedPreferences preferences, Set<String> keys);
+    }
+
+}
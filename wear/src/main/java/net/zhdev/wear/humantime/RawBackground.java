@@ -0,0 +1,202 @@
+/*
+ * Copyright 2014 Julio García Muñoz (ZhDev)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.zhdev.wear.humantime;
+
+import net.zhdev.wear.humantime.shared.Constants;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Point;
+import android.view.WindowManager;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * <p><code>RawBackground</code> stores the background image as raw pixels, already scaled to the
+ * size of the display, so loading it is a copy from a memory-mapped file instead of a PNG
+ * decode.</p>
+ *
+ * <p>The file starts with a small header (a magic number, the width, the height and the bitmap
+ * config) followed by the pixels as returned by {@link Bitmap#copyPixelsToBuffer(java.nio.Buffer)}.
+ * The image is transcoded once, when it's received from the handheld. Each background variant is
+ * stored in its own file, in the directory of the background in the {@link BackgroundLibrary}.</p>
+ *
+ * @author Julio García Muñoz (ZhDev)
+ */
+public final class RawBackground {
+
+    private static final int MAGIC = 0x48544247; // "HTBG"
+
+    private static final int HEADER_SIZE = 4 * 4;
+
+    private static final int CONFIG_ARGB_8888 = 0;
+
+    private static final int CONFIG_RGB_565 = 1;
+
+    private RawBackground() {
+
+    }
+
+    private static File getFile(File directory, String variant) {
+        return new File(directory, "background_image_" + variant + ".raw");
+    }
+
+    /**
+     * @return the bitmap config the background is stored with, as set in the resources
+     */
+    public static Bitmap.Config getConfig(Context context) {
+        return context.getResources().getBoolean(R.bool.background_rgb_565)
+                ? Bitmap.Config.RGB_565 : Bitmap.Config.ARGB_8888;
+    }
+
+    /**
+     * @return the real size of the default display in pixels
+     */
+    public static Point getDisplaySize(Context context) {
+        Point size = new Point();
+        WindowManager windowManager = (WindowManager) context
+                .getSystemService(Context.WINDOW_SERVICE);
+        windowManager.getDefaultDisplay().getRealSize(size);
+        return size;
+    }
+
+    /**
+     * Decodes the image file of a background variant, scales it to the size of the display if it
+     * isn't already and stores it as raw pixels.
+     *
+     * @param context   the context used to get the display size
+     * @param directory the directory of the background
+     * @param variant   one of the <code>BACKGROUND_VARIANT_</code> constants
+     * @return true if the raw file was written, false otherwise
+     */
+    public static boolean transcode(Context context, File directory, String variant) {
+        File source = new File(directory, Constants.getBackgroundFileName(variant));
+        Point size = getDisplaySize(context);
+
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inPreferredConfig = getConfig(context);
+        Bitmap decoded = BitmapFactory.decodeFile(source.getPath(), options);
+        if (decoded == null) {
+            return false;
+        }
+        Bitmap scaled = Bitmap.createScaledBitmap(decoded, size.x, size.y, true);
+        if (scaled != decoded) {
+            decoded.recycle();
+        }
+        // The file is written aside and renamed, so a partially written file is never read
+        File file = getFile(directory, variant);
+        File tempFile = new File(directory, file.getName() + ".tmp");
+        try {
+            write(tempFile, scaled);
+            return tempFile.renameTo(file);
+        } catch (IOException e) {
+            return false;
+        } finally {
+            tempFile.delete();
+            scaled.recycle();
+        }
+    }
+
+    private static void write(File file, Bitmap bitmap) throws IOException {
+        int config = bitmap.getConfig() == Bitmap.Config.RGB_565
+                ? CONFIG_RGB_565 : CONFIG_ARGB_8888;
+        long length = HEADER_SIZE + bitmap.getByteCount();
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            randomAccessFile.setLength(length);
+            FileChannel channel = randomAccessFile.getChannel();
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, length);
+            buffer.putInt(MAGIC)
+                    .putInt(bitmap.getWidth())
+                    .putInt(bitmap.getHeight())
+                    .putInt(config);
+            bitmap.copyPixelsToBuffer(buffer);
+            buffer.force();
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    /**
+     * Loads the raw background by mapping the file into memory and copying its pixels into a
+     * bitmap. The header is checked before allocating anything: a file whose size doesn't match
+     * the display, which was transcoded for another one or is corrupt, isn't valid.
+     *
+     * @param context   the context used to get the display size
+     * @param directory the directory of the background
+     * @param variant   one of the <code>BACKGROUND_VARIANT_</code> constants
+     * @param pool      the pool the bitmap is taken from, if it has one big enough
+     * @return the bitmap with the background or null if there's no valid raw file
+     */
+    public static Bitmap read(Context context, File directory, String variant,
+            BitmapPool pool) {
+        File file = getFile(directory, variant);
+        if (!file.exists()) {
+            return null;
+        }
+        try {
+            RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+            try {
+                FileChannel channel = randomAccessFile.getChannel();
+                ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                if (buffer.remaining() < HEADER_SIZE || buffer.getInt() != MAGIC) {
+                    return null;
+                }
+                int width = buffer.getInt();
+                int height = buffer.getInt();
+                int storedConfig = buffer.getInt();
+                Point size = getDisplaySize(context);
+                if (width != size.x || height != size.y
+                        || (storedConfig != CONFIG_RGB_565 && storedConfig != CONFIG_ARGB_8888)) {
+                    return null;
+                }
+                boolean rgb565 = storedConfig == CONFIG_RGB_565;
+                Bitmap.Config config = rgb565 ? Bitmap.Config.RGB_565 : Bitmap.Config.ARGB_8888;
+                if (buffer.remaining() < (long) width * height * (rgb565 ? 2 : 4)) {
+                    return null;
+                }
+                Bitmap bitmap = pool.get(width, height, config);
+                if (bitmap != null) {
+                    bitmap.reconfigure(width, height, config);
+                } else {
+                    bitmap = Bitmap.createBitmap(width, height, config);
+                }
+                bitmap.copyPixelsFromBuffer(buffer);
+                return bitmap;
+            } finally {
+                randomAccessFile.close();
+            }
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Deletes the raw file of a background variant, so the image file is used until it's
+     * transcoded again.
+     */
+    public static void delete(File directory, String variant) {
+        getFile(directory, variant).delete();
+    }
+
+}
@@ -17,24 +17,17 @@
 package net.zhdev.wear.humantime;
 
 import android.content.Context;
-import android.text.format.DateFormat;
 import android.util.AttributeSet;
-import android.widget.TextView;
-
-import java.text.SimpleDateFormat;
-import java.util.Calendar;
-import java.util.Locale;
 
 /**
  * <code>ShortDateClock</code> is a clock than only provides a short, localized version of the
- * current date. It only includes the day of the week and the day of the month.
+ * current date. It only includes the day of the week and the day of the month. The date is
+ * formatted in advance by the {@link TransitionSchedule}, using a {@link ShortDateFormatter}.
  *
  * @author Julio García Muñoz (ZhDev)
  */
 public class ShortDateClock extends AutoFitTextClock {
 
-    private SimpleDateFormat mFormatter;
-
     public ShortDateClock(Context context) {
         this(context, null);
     }
@@ -45,13 +38,15 @@ public class ShortDateClock extends AutoFitTextClock {
 
     public ShortDateClock(Context context, AttributeSet attrs, int defStyle) {
         super(context, attrs, defStyle);
-        Locale locale = context.getResources().getConfiguration().locale;
-        String datePattern = DateFormat.getBestDateTimePattern(locale, "cccd");
-        mFormatter = new SimpleDateFormat(datePattern, locale);
     }
 
-    protected String getDateTimeText(Calendar calendar) {
-        return mFormatter.format(calendar.getTime());
+    @Override
+    protected long getUpdatePeriod() {
+        return TimeSnapshot.DAY_MILLIS;
+    }
+
+    protected String getDateTimeText(TransitionSchedule schedule) {
+        return schedule.getDate();
     }
 
 }
@@ -0,0 +1,100 @@
+/*
+ * Copyright 2014 Julio García Muñoz (ZhDev)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.zhdev.wear.humantime;
+
+import android.text.format.DateFormat;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+
+/**
+ * <p><code>ShortDateFormatter</code> formats the date as the day of the week and the day of the
+ * month for a given locale.</p>
+ *
+ * <p>The text is formatted once and served from memory until the next local midnight, computed
+ * with the zone offsets in effect so days with a daylight saving time change are handled too. The
+ * best pattern for each locale is kept in a static cache, so only the first formatter for a locale
+ * has to ask ICU for it.</p>
+ *
+ * @author Julio García Muñoz (ZhDev)
+ */
+public class ShortDateFormatter {
+
+    private static final String SKELETON = "cccd";
+
+    private static Map<Locale, String> patternMap = new HashMap<Locale, String>();
+
+    private final Locale mLocale;
+
+    private final SimpleDateFormat mFormatter;
+
+    private final Date mDate = new Date();
+
+    private TimeZone mTimeZone;
+
+    private String mText;
+
+    private long mValidFrom;
+
+    private long mValidUntil;
+
+    public ShortDateFormatter(Locale locale) {
+        if (locale == null) {
+            throw new IllegalArgumentException("Locale must be non-null");
+        }
+        mLocale = locale;
+        mFormatter = new SimpleDateFormat(getPattern(locale), locale);
+    }
+
+    private static String getPattern(Locale locale) {
+        String pattern = patternMap.get(locale);
+        if (pattern == null) {
+            pattern = DateFormat.getBestDateTimePattern(locale, SKELETON);
+            patternMap.put(locale, pattern);
+        }
+        return pattern;
+    }
+
+    public Locale getLocale() {
+        return mLocale;
+    }
+
+    /**
+     * Returns the date for the given time. The same instance is returned for the whole local day.
+     *
+     * @param time a date and time
+     * @return the short textual representation of the date
+     */
+    public String format(TimeSnapshot time) {
+        long now = time.getTimeMillis();
+        if (mText == null || time.getTimeZone() != mTimeZone || now < mValidFrom
+                || now >= mValidUntil) {
+            mTimeZone = time.getTimeZone();
+            mFormatter.setTimeZone(mTimeZone);
+            mDate.setTime(now);
+            mText = mFormatter.format(mDate);
+            mValidFrom = now;
+            mValidUntil = time.getNextBoundary(TimeSnapshot.DAY_MILLIS, 0);
+        }
+        return mText;
+    }
+
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2014 Julio García Muñoz (ZhDev)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.zhdev.wear.humantime;
+
+import android.graphics.Paint;
+import android.text.TextPaint;
+
+/**
+ * <p><code>TextFitter</code> computes the largest text size at which a text, already broken in
+ * lines, fits in the given bounds.</p>
+ *
+ * <p>Instead of searching the size by laying out the text over and over, the advance width of
+ * every line and the font spacing are measured once at the maximum size. Both scale linearly with
+ * the text size, so the fitting size is obtained directly from the ratio between the available
+ * space and the measured one. The paint used to measure is reused between calls.</p>
+ *
+ * @author Julio García Muñoz (ZhDev)
+ */
+public class TextFitter {
+
+    // Sizes are rounded down to this step, so hinting differences never make a line overflow
+    private static final float PRECISION = 0.5F;
+
+    private final TextPaint mPaint = new TextPaint();
+
+    /**
+     * Computes the size that fits a text.
+     *
+     * @param text      the text, its lines separated by '\n'
+     * @param paint     the paint the text is drawn with, its text size is ignored
+     * @param maxSize   the maximum text size in pixels
+     * @param minSize   the minimum text size in pixels
+     * @param maxWidth  the available width in pixels
+     * @param maxHeight the available height in pixels or 0 or less if it isn't bounded
+     * @return the largest text size between <code>minSize</code> and <code>maxSize</code> at
+     * which the text fits
+     */
+    public float fit(CharSequence text, Paint paint, float maxSize, float minSize, int maxWidth,
+            int maxHeight) {
+        if (maxWidth <= 0 || text.length() == 0) {
+            return maxSize;
+        }
+        mPaint.set(paint);
+        mPaint.setTextSize(maxSize);
+
+        float widest = 0;
+        int lines = 1;
+        int start = 0;
+        int length = text.length();
+        for (int i = 0; i <= length; i++) {
+            if (i == length || text.charAt(i) == '\n') {
+                float width = mPaint.measureText(text, start, i);
+                if (width > widest) {
+                    widest = width;
+                }
+                if (i < length) {
+                    lines++;
+                }
+                start = i + 1;
+            }
+        }
+
+        float scale = 1;
+        if (widest > maxWidth) {
+            scale = maxWidth / widest;
+        }
+        if (maxHeight > 0) {
+            float height = mPaint.getFontSpacing() * lines;
+            if (height * scale > maxHeight) {
+                scale = maxHeight / height;
+            }
+        }
+        if (scale >= 1) {
+            return maxSize;
+        }
+
+        float size = (float) Math.floor(maxSize * scale / PRECISION) * PRECISION;
+        return Math.max(size, minSize);
+    }
+
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2014 Julio García Muñoz (ZhDev)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.zhdev.wear.humantime;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * <p><code>TextSizeCache</code> remembers the text size that fits each text in a view, so a text
+ * only has to be measured the first time it's displayed.</p>
+ *
+ * <p>The sizes are only valid for a given configuration (typeface, style, base text size and
+ * bounds), which is identified by a fingerprint. Changing the fingerprint discards the stored
+ * sizes. The cache is kept in its own <code>SharedPreferences</code> file, so it survives process
+ * restarts and reboots.</p>
+ *
+ * @author Julio García Muñoz (ZhDev)
+ */
+public class TextSizeCache {
+
+    private static final String PREFS_NAME_PREFIX = "text_size_cache_";
+
+    private static final String FINGERPRINT_KEY = "fingerprint";
+
+    private final SharedPreferences mPreferences;
+
+    private final Map<String, Float> mSizes = new HashMap<String, Float>();
+
+    private String mFingerprint;
+
+    /**
+     * @param context the context used to access the preferences
+     * @param name    a name that identifies the view using the cache
+     */
+    public TextSizeCache(Context context, String name) {
+        mPreferences = context.getSharedPreferences(PREFS_NAME_PREFIX + name,
+                Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Sets the configuration the sizes are valid for. If it's different from the stored one, the
+     * stored sizes are discarded.
+     *
+     * @param fingerprint a string identifying the configuration
+     */
+    public void setFingerprint(String fingerprint) {
+        if (fingerprint.equals(mFingerprint)) {
+            return;
+        }
+        mFingerprint = fingerprint;
+        mSizes.clear();
+        if (fingerprint.equals(mPreferences.getString(FINGERPRINT_KEY, null))) {
+            for (Map.Entry<String, ?> entry : mPreferences.getAll().entrySet()) {
+                if (entry.getValue() instanceof Float) {
+                    mSizes.put(entry.getKey(), (Float) entry.getValue());
+                }
+            }
+        } else {
+            mPreferences.edit()
+                    .clear()
+                    .putString(FINGERPRINT_KEY, fingerprint)
+                    .apply();
+        }
+    }
+
+    /**
+     * @param text the text displayed
+     * @return the size in pixels that fits the text or 0 if it isn't known
+     */
+    public float get(String text) {
+        Float size = mSizes.get(text);
+        return size != null ? size : 0;
+    }
+
+    /**
+     * Stores the size that fits a text. The value is written to disk asynchronously.
+     *
+     * @param text the text displayed
+     * @param size the size in pixels that fits the text
+     */
+    public void put(String text, float size) {
+        if (mFingerprint == null) {
+            throw new IllegalStateException("The fingerprint must be set first");
+        }
+        mSizes.put(text, size);
+        mPreferences.edit().putFloat(text, size).apply();
+    }
+
+}
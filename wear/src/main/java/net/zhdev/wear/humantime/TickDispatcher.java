@@ -0,0 +1,295 @@
+/*
+ * Copyright 2014 Julio García Muñoz (ZhDev)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.zhdev.wear.humantime;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.BroadcastReceiver;
+import android.content.ComponentCallbacks;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.res.Configuration;
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * <p><code>TickDispatcher</code> keeps the time for every clock in the process. It registers the
+ * same receivers and a single alarm for all of them, reads the system clock once per event
+ * and hands the {@link TransitionSchedule} of its time zone to every attached {@link Listener}.</p>
+ *
+ * <p>Each listener declares how often its text can change, and the alarm is set for the earliest
+ * of those instants. Listeners in the same time zone share the same snapshot and schedule, so
+ * adding more clocks doesn't add receivers or time computations. The schedules are discarded when
+ * the time, the time zone or the locale change.</p>
+ *
+ * @author Julio García Muñoz (ZhDev)
+ */
+public class TickDispatcher {
+
+    private static final String ACTION_UPDATE = "net.zhdev.wear.humantime.action.UPDATE_CLOCK";
+
+    private static final String PERMISSION_UPDATE =
+            "net.zhdev.wear.humantime.permission.UPDATE_CLOCK";
+
+    private static TickDispatcher sInstance;
+
+    private final Context mContext;
+
+    private final Handler mHandler;
+
+    private final AlarmManager mAlarmManager;
+
+    private final PendingIntent mUpdateIntent;
+
+    private final List<Listener> mListeners = new ArrayList<Listener>();
+
+    private final TransitionSchedule mDefaultSchedule;
+
+    private final List<TransitionSchedule> mZoneSchedules = new ArrayList<TransitionSchedule>();
+
+    // The time zone IDs requested by the listeners, in the same order as the schedules. An unknown
+    // ID resolves to GMT, so the schedules are looked up by the ID they were requested with.
+    private final List<String> mZoneIds = new ArrayList<String>();
+
+    private Locale mLocale;
+
+    private final BroadcastReceiver mIntentReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            String action = intent.getAction();
+            if (Intent.ACTION_TIMEZONE_CHANGED.equals(action)) {
+                final String timeZone = intent.getStringExtra("time-zone");
+                if (timeZone != null) {
+                    mDefaultSchedule.getTime().setTimeZone(TimeZone.getTimeZone(timeZone));
+                } else {
+                    mDefaultSchedule.getTime().setTimeZone(TimeZone.getDefault());
+                }
+            }
+            invalidateSchedules();
+            update();
+        }
+    };
+
+    // The alarm is received on its own, behind a signature permission, so other apps can't make
+    // the clocks update
+    private final BroadcastReceiver mUpdateReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            update();
+        }
+    };
+
+    private final ComponentCallbacks mComponentCallbacks = new ComponentCallbacks() {
+        @Override
+        public void onConfigurationChanged(Configuration newConfig) {
+            if (newConfig.locale != null && !newConfig.locale.equals(mLocale)) {
+                mLocale = newConfig.locale;
+                mDefaultSchedule.setLocale(mLocale);
+                for (int i = 0; i < mZoneSchedules.size(); i++) {
+                    mZoneSchedules.get(i).setLocale(mLocale);
+                }
+                if (!mListeners.isEmpty()) {
+                    update();
+                }
+            }
+        }
+
+        @Override
+        public void onLowMemory() {
+
+        }
+    };
+
+    private TickDispatcher(Context context) {
+        mContext = context;
+        mHandler = new Handler(Looper.getMainLooper());
+        mAlarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        Intent intent = new Intent(ACTION_UPDATE).setPackage(context.getPackageName());
+        mUpdateIntent = PendingIntent.getBroadcast(context, 0, intent, 0);
+        mLocale = context.getResources().getConfiguration().locale;
+        mDefaultSchedule = new TransitionSchedule(new TimeSnapshot(TimeZone.getDefault()),
+                mLocale);
+        context.registerComponentCallbacks(mComponentCallbacks);
+    }
+
+    public static TickDispatcher getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new TickDispatcher(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    /**
+     * Starts sending time updates to a listener. The listener is notified immediately with the
+     * current time.
+     *
+     * @param listener the listener to add
+     */
+    public void addListener(Listener listener) {
+        if (mListeners.contains(listener)) {
+            return;
+        }
+        if (mListeners.isEmpty()) {
+            registerReceiver();
+        }
+        mListeners.add(listener);
+        update();
+    }
+
+    /**
+     * Stops sending time updates to a listener. When there are no listeners left the receiver is
+     * unregistered and the alarm cancelled.
+     *
+     * @param listener the listener to remove
+     */
+    public void removeListener(Listener listener) {
+        if (!mListeners.remove(listener)) {
+            return;
+        }
+        if (mListeners.isEmpty()) {
+            unregisterReceiver();
+            mZoneSchedules.clear();
+            mZoneIds.clear();
+        } else {
+            schedule();
+        }
+    }
+
+    private void registerReceiver() {
+        // The time zone or the time might have changed while nothing was listening
+        mDefaultSchedule.getTime().setTimeZone(TimeZone.getDefault());
+        invalidateSchedules();
+
+        final IntentFilter filter = new IntentFilter();
+
+        filter.addAction(Intent.ACTION_TIME_CHANGED);
+        filter.addAction(Intent.ACTION_TIMEZONE_CHANGED);
+
+        mContext.registerReceiver(mIntentReceiver, filter, null, mHandler);
+        mContext.registerReceiver(mUpdateReceiver, new IntentFilter(ACTION_UPDATE),
+                PERMISSION_UPDATE, mHandler);
+    }
+
+    private void unregisterReceiver() {
+        mContext.unregisterReceiver(mIntentReceiver);
+        mContext.unregisterReceiver(mUpdateReceiver);
+        mAlarmManager.cancel(mUpdateIntent);
+    }
+
+    private void invalidateSchedules() {
+        mDefaultSchedule.invalidate();
+        for (int i = 0; i < mZoneSchedules.size(); i++) {
+            mZoneSchedules.get(i).invalidate();
+        }
+    }
+
+    /**
+     * Reads the current time, notifies every listener and sets the alarm for the next instant one
+     * of them needs to be updated. Must be called from the main thread.
+     */
+    public void update() {
+        long now = System.currentTimeMillis();
+        mDefaultSchedule.getTime().set(now);
+        mDefaultSchedule.update();
+        for (int i = 0; i < mZoneSchedules.size(); i++) {
+            TransitionSchedule schedule = mZoneSchedules.get(i);
+            schedule.getTime().set(now);
+            schedule.update();
+        }
+        for (int i = 0; i < mListeners.size(); i++) {
+            Listener listener = mListeners.get(i);
+            listener.onTimeChanged(getSchedule(listener.getTimeZone(), now));
+        }
+        schedule();
+    }
+
+    private void schedule() {
+        if (mListeners.isEmpty()) {
+            return;
+        }
+        long nextUpdate = Long.MAX_VALUE;
+        for (int i = 0; i < mListeners.size(); i++) {
+            Listener listener = mListeners.get(i);
+            TimeSnapshot time = getSchedule(listener.getTimeZone(),
+                    mDefaultSchedule.getTime().getTimeMillis()).getTime();
+            long next = time.getNextBoundary(listener.getUpdatePeriod(),
+                    listener.getUpdatePhase());
+            if (next < nextUpdate) {
+                nextUpdate = next;
+            }
+        }
+        mAlarmManager.setExact(AlarmManager.RTC, nextUpdate, mUpdateIntent);
+    }
+
+    /**
+     * Returns the schedule for a time zone, creating it the first time the zone is used.
+     */
+    private TransitionSchedule getSchedule(String timeZone, long now) {
+        if (timeZone == null) {
+            return mDefaultSchedule;
+        }
+        for (int i = 0; i < mZoneIds.size(); i++) {
+            if (timeZone.equals(mZoneIds.get(i))) {
+                return mZoneSchedules.get(i);
+            }
+        }
+        TimeSnapshot time = new TimeSnapshot(TimeZone.getTimeZone(timeZone));
+        time.set(now);
+        TransitionSchedule schedule = new TransitionSchedule(time, mLocale);
+        schedule.update();
+        mZoneSchedules.add(schedule);
+        mZoneIds.add(timeZone);
+        return schedule;
+    }
+
+    /**
+     * Receives the time updates of a {@link TickDispatcher}.
+     */
+    public interface Listener {
+
+        /**
+         * @return the ID of the time zone of the listener or null to use the system time zone
+         */
+        String getTimeZone();
+
+        /**
+         * @return how often the listener needs to be updated in milliseconds, it must divide a
+         * day evenly
+         */
+        long getUpdatePeriod();
+
+        /**
+         * @return the offset of the updates within the update period in milliseconds
+         */
+        long getUpdatePhase();
+
+        /**
+         * Called when the time changes. The schedule is shared and must not be modified.
+         *
+         * @param schedule the schedule of the time zone of the listener, already moved to the
+         *                 current time
+         */
+        void onTimeChanged(TransitionSchedule schedule);
+    }
+
+}
@@ -18,28 +18,116 @@ package net.zhdev.wear.humantime;
 
 import com.squareup.phrase.Phrase;
 
+import android.content.res.Configuration;
 import android.content.res.Resources;
 
 import java.util.Locale;
 
 /**
- * <code>TimeConverter</code> converts a time, given in hours and minutes to its textual
- * representation in a human readable way.
+ * <p><code>TimeConverter</code> converts a time, given in hours and minutes to its textual
+ * representation in a human readable way.</p>
+ *
+ * <p>Since the time is rounded to 5-minute steps there are only {@link #PHRASE_COUNT} different
+ * outputs. They are built once per locale into a table, so {@link #getTime(int, int)} is just an
+ * array lookup. The table is rebuilt when {@link #onConfigurationChanged(Configuration)} reports a
+ * different locale.</p>
  *
  * @author Julio García Muñoz (ZhDev)
  */
 public class TimeConverter {
 
+    /**
+     * Number of 5-minute steps in an hour.
+     */
+    public static final int STEPS_PER_HOUR = 12;
+
+    /**
+     * Number of different phrases, 12 hours times 12 5-minute steps.
+     */
+    public static final int PHRASE_COUNT = 12 * STEPS_PER_HOUR;
+
+    private final String[] mPhrases = new String[PHRASE_COUNT];
+
     private Resources mResources;
 
     private Locale mLocale;
 
+    private int mTableVersion;
+
     public TimeConverter(Resources resources) {
         if (resources == null) {
             throw new IllegalArgumentException("Null parameters");
         }
         mResources = resources;
         mLocale = resources.getConfiguration().locale;
+        buildTable();
+    }
+
+    /**
+     * Returns the index in the phrase table for a given time, rounding the minutes to the nearest
+     * 5-minute step. Index 0 is twelve o'clock.
+     *
+     * @param hours   the time hours, in 12 or 24-hour format
+     * @param minutes the time minutes
+     * @return an index between 0 and {@link #PHRASE_COUNT} - 1
+     */
+    public static int getPhraseIndex(int hours, int minutes) {
+        return ((hours % 12) * STEPS_PER_HOUR + (minutes + 2) / 5) % PHRASE_COUNT;
+    }
+
+    private void buildTable() {
+        for (int i = 0; i < PHRASE_COUNT; i++) {
+            mPhrases[i] = convertTime(i / STEPS_PER_HOUR, (i % STEPS_PER_HOUR) * 5);
+        }
+        mTableVersion++;
+    }
+
+    /**
+     * Rebuilds the phrase table if the locale in the new configuration is different from the one
+     * used to build it.
+     *
+     * @param newConfig the new device configuration
+     * @return true if the table was rebuilt, false otherwise
+     */
+    public boolean onConfigurationChanged(Configuration newConfig) {
+        if (newConfig == null || newConfig.locale == null || newConfig.locale.equals(mLocale)) {
+            return false;
+        }
+        mLocale = newConfig.locale;
+        buildTable();
+        return true;
+    }
+
+    /**
+     * Returns a number that changes every time the phrase table is rebuilt, so callers that derive
+     * their own data from the phrases know when to refresh it.
+     *
+     * @return the current version of the phrase table
+     */
+    public int getTableVersion() {
+        return mTableVersion;
+    }
+
+    /**
+     * Returns the textual representation of a time from the precomputed table. This method doesn't
+     * allocate any objects.
+     *
+     * @param hours   the time hours, in 12 or 24-hour format
+     * @param minutes the time minutes
+     * @return the textual representation of the time
+     */
+    public String getTime(int hours, int minutes) {
+        return mPhrases[getPhraseIndex(hours, minutes)];
+    }
+
+    /**
+     * Returns the phrase stored in the table for a given index.
+     *
+     * @param index an index as returned by {@link #getPhraseIndex(int, int)}
+     * @return the textual representation of the time
+     */
+    public String getPhrase(int index) {
+        return mPhrases[index];
     }
 
     private static int roundToNearestMultipleOfFive(int number) {
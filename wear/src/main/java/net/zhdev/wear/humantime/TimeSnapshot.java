@@ -0,0 +1,168 @@
+/*
+ * Copyright 2014 Julio García Muñoz (ZhDev)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.zhdev.wear.humantime;
+
+import java.util.TimeZone;
+
+/**
+ * <p><code>TimeSnapshot</code> is a lightweight replacement for {@link java.util.Calendar} that
+ * derives the local time fields directly from the epoch milliseconds and the offset of a time
+ * zone.</p>
+ *
+ * <p>The zone offset is cached for the current UTC quarter of an hour, since time zone
+ * transitions always happen at those instants. Updating the snapshot doesn't allocate any
+ * objects.</p>
+ *
+ * @author Julio García Muñoz (ZhDev)
+ */
+public class TimeSnapshot {
+
+    public static final long MINUTE_MILLIS = 60 * 1000L;
+
+    public static final long HOUR_MILLIS = 60 * MINUTE_MILLIS;
+
+    public static final long DAY_MILLIS = 24 * HOUR_MILLIS;
+
+    private static final long OFFSET_VALIDITY_MILLIS = 15 * MINUTE_MILLIS;
+
+    private TimeZone mTimeZone;
+
+    private long mTimeMillis;
+
+    private long mLocalMillis;
+
+    private int mOffset;
+
+    private long mOffsetValidFrom;
+
+    private long mOffsetValidUntil;
+
+    public TimeSnapshot(TimeZone timeZone) {
+        setTimeZone(timeZone);
+    }
+
+    /**
+     * Changes the time zone used to compute the local time. The current time is kept, so
+     * {@link #set(long)} has to be called again to refresh the local fields.
+     *
+     * @param timeZone the new time zone
+     */
+    public void setTimeZone(TimeZone timeZone) {
+        if (timeZone == null) {
+            throw new IllegalArgumentException("Time zone must be non-null");
+        }
+        mTimeZone = timeZone;
+        mOffsetValidFrom = Long.MAX_VALUE;
+        mOffsetValidUntil = Long.MIN_VALUE;
+    }
+
+    public TimeZone getTimeZone() {
+        return mTimeZone;
+    }
+
+    /**
+     * Updates the snapshot to the given instant.
+     *
+     * @param timeMillis milliseconds since the epoch, as returned by
+     *                   {@link System#currentTimeMillis()}
+     */
+    public void set(long timeMillis) {
+        if (timeMillis < mOffsetValidFrom || timeMillis >= mOffsetValidUntil) {
+            mOffset = mTimeZone.getOffset(timeMillis);
+            mOffsetValidFrom = timeMillis - timeMillis % OFFSET_VALIDITY_MILLIS;
+            mOffsetValidUntil = mOffsetValidFrom + OFFSET_VALIDITY_MILLIS;
+        }
+        mTimeMillis = timeMillis;
+        mLocalMillis = timeMillis + mOffset;
+    }
+
+    public long getTimeMillis() {
+        return mTimeMillis;
+    }
+
+    /**
+     * @return the milliseconds since the epoch shifted by the zone offset, so the local fields can
+     * be obtained with plain arithmetic
+     */
+    public long getLocalMillis() {
+        return mLocalMillis;
+    }
+
+    public int getOffset() {
+        return mOffset;
+    }
+
+    /**
+     * @return the number of local days since the epoch
+     */
+    public long getDay() {
+        return mLocalMillis / DAY_MILLIS;
+    }
+
+    /**
+     * @return the hour of the day, between 0 and 23
+     */
+    public int getHour() {
+        return (int) (mLocalMillis % DAY_MILLIS / HOUR_MILLIS);
+    }
+
+    /**
+     * @return the minute of the hour, between 0 and 59
+     */
+    public int getMinute() {
+        return (int) (mLocalMillis % HOUR_MILLIS / MINUTE_MILLIS);
+    }
+
+    /**
+     * Computes the first instant after the current one at which the local time is a multiple of
+     * the given period plus the phase. For instance, a period of a day and a phase of 0 returns
+     * the next local midnight. If the zone offset changes before that instant, the instant of the
+     * transition is returned instead, since the local time jumps at that point.
+     *
+     * @param periodMillis the length of the period, it must divide a day evenly
+     * @param phaseMillis  the offset of the boundaries within the period
+     * @return the milliseconds since the epoch of the next boundary
+     */
+    public long getNextBoundary(long periodMillis, long phaseMillis) {
+        long local = mLocalMillis - phaseMillis;
+        long nextLocal = local - local % periodMillis + periodMillis + phaseMillis;
+        long next = nextLocal - mOffset;
+        if (next >= mOffsetValidUntil && mTimeZone.getOffset(next) != mOffset) {
+            return getNextTransition(next);
+        }
+        return next;
+    }
+
+    /**
+     * Looks for the instant in which the zone offset changes, knowing that it happens after the
+     * current instant and no later than <code>limitMillis</code>.
+     */
+    private long getNextTransition(long limitMillis) {
+        long low = mTimeMillis / OFFSET_VALIDITY_MILLIS;
+        long high = (limitMillis + OFFSET_VALIDITY_MILLIS - 1) / OFFSET_VALIDITY_MILLIS;
+        while (high - low > 1) {
+            long middle = (low + high) >>> 1;
+            if (mTimeZone.getOffset(middle * OFFSET_VALIDITY_MILLIS) == mOffset) {
+                low = middle;
+            } else {
+                high = middle;
+            }
+        }
+        return high * OFFSET_VALIDITY_MILLIS;
+    }
+
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright 2014 Julio García Muñoz (ZhDev)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.zhdev.wear.humantime;
+
+import java.util.Locale;
+
+/**
+ * <p><code>TransitionSchedule</code> precomputes every instant in which the text of the clocks
+ * changes until the next local midnight. It's built again at midnight, covering the whole day, and
+ * when the time or the time zone changes. The instants include the 5-minute phrase changes and the
+ * jumps caused by daylight saving time. For each instant it stores the index of the phrase in the
+ * {@link TimeConverter} table and the short date.</p>
+ *
+ * <p>Once built, updating the schedule to the current time only advances a cursor, so the cost
+ * of a tick doesn't depend on the time zone and a 23 or 25-hour day is handled without looking
+ * up zone offsets on every tick.</p>
+ *
+ * @author Julio García Muñoz (ZhDev)
+ */
+public class TransitionSchedule {
+
+    private static final long PHRASE_PERIOD_MILLIS = 5 * TimeSnapshot.MINUTE_MILLIS;
+
+    // The minutes are rounded to the nearest multiple of 5, so the phrase changes 3 minutes after
+    // each multiple
+    private static final long PHRASE_PHASE_MILLIS = 3 * TimeSnapshot.MINUTE_MILLIS;
+
+    // 25 hours of phrases plus the midnight and the time zone transitions
+    private static final int CAPACITY = 25 * TimeConverter.STEPS_PER_HOUR + 4;
+
+    private final TimeSnapshot mTime;
+
+    private final TimeSnapshot mScratch;
+
+    private final long[] mInstants = new long[CAPACITY];
+
+    private final int[] mPhraseIndexes = new int[CAPACITY];
+
+    private final String[] mDates = new String[CAPACITY];
+
+    private ShortDateFormatter mDateFormatter;
+
+    private int mCount;
+
+    private int mCursor;
+
+    private long mValidUntil;
+
+    public TransitionSchedule(TimeSnapshot time, Locale locale) {
+        if (time == null) {
+            throw new IllegalArgumentException("Time must be non-null");
+        }
+        mTime = time;
+        mScratch = new TimeSnapshot(time.getTimeZone());
+        mDateFormatter = new ShortDateFormatter(locale);
+    }
+
+    /**
+     * @return the snapshot this schedule is built for
+     */
+    public TimeSnapshot getTime() {
+        return mTime;
+    }
+
+    /**
+     * Changes the locale used for the dates, discarding the current schedule.
+     *
+     * @param locale the new locale
+     */
+    public void setLocale(Locale locale) {
+        if (!locale.equals(mDateFormatter.getLocale())) {
+            mDateFormatter = new ShortDateFormatter(locale);
+            invalidate();
+        }
+    }
+
+    /**
+     * Discards the current schedule, so it's rebuilt on the next update. It must be called when
+     * the time or the time zone changes.
+     */
+    public void invalidate() {
+        mCount = 0;
+    }
+
+    /**
+     * Moves the cursor to the current time of the snapshot, building the schedule again if the
+     * time is outside of it.
+     */
+    public void update() {
+        long now = mTime.getTimeMillis();
+        if (mCount == 0 || mScratch.getTimeZone() != mTime.getTimeZone()
+                || now < mInstants[mCursor] || now >= mValidUntil) {
+            build();
+            return;
+        }
+        while (mCursor + 1 < mCount && mInstants[mCursor + 1] <= now) {
+            mCursor++;
+        }
+    }
+
+    private void build() {
+        long now = mTime.getTimeMillis();
+        mScratch.setTimeZone(mTime.getTimeZone());
+        mScratch.set(now);
+        // The schedule ends when the local day changes. Offset transitions are boundaries too, so
+        // there might be more than one before the actual midnight.
+        long today = mScratch.getDay();
+        do {
+            mValidUntil = mScratch.getNextBoundary(TimeSnapshot.DAY_MILLIS, 0);
+            mScratch.set(mValidUntil);
+        } while (mScratch.getDay() == today);
+
+        mCount = 0;
+        mCursor = 0;
+        long instant = now;
+        while (instant < mValidUntil && mCount < CAPACITY) {
+            mScratch.set(instant);
+            mInstants[mCount] = instant;
+            mPhraseIndexes[mCount] = TimeConverter
+                    .getPhraseIndex(mScratch.getHour(), mScratch.getMinute());
+            mDates[mCount] = mDateFormatter.format(mScratch);
+            mCount++;
+            instant = Math.min(mScratch.getNextBoundary(PHRASE_PERIOD_MILLIS, PHRASE_PHASE_MILLIS),
+                    mScratch.getNextBoundary(TimeSnapshot.DAY_MILLIS, 0));
+        }
+        if (instant < mValidUntil) {
+            mValidUntil = instant;
+        }
+    }
+
+    /**
+     * @return the index of the current phrase in the {@link TimeConverter} table
+     */
+    public int getPhraseIndex() {
+        return mPhraseIndexes[mCursor];
+    }
+
+    /**
+     * @return the current short date
+     */
+    public String getDate() {
+        return mDates[mCursor];
+    }
+
+    /**
+     * @return the instant of the next text change, or the end of the schedule if there are no
+     * more changes in it
+     */
+    public long getNextTransition() {
+        return mCursor + 1 < mCount ? mInstants[mCursor + 1] : mValidUntil;
+    }
+
+}
@@ -22,6 +22,7 @@ import net.zhdev.wear.humantime.shared.Font;
 import android.app.Activity;
 import android.content.Context;
 import android.content.SharedPreferences;
+import android.graphics.Bitmap;
 import android.graphics.Color;
 import android.graphics.Typeface;
 import android.graphics.drawable.BitmapDrawable;
@@ -30,14 +31,10 @@ import android.graphics.drawable.Drawable;
 import android.hardware.display.DisplayManager;
 import android.os.Bundle;
 import android.os.Handler;
-import android.util.TypedValue;
 import android.view.Display;
-import android.view.View;
-import android.widget.LinearLayout;
-import android.widget.TextView;
 
-import java.io.FileNotFoundException;
-import java.io.InputStream;
+import java.io.File;
+import java.util.Set;
 
 /**
  * <p><code>WatchFaceActivity</code> implements the UI for a watch face that shows the time in a
@@ -48,18 +45,19 @@ import java.io.InputStream;
  * text color, the text style and the text shadow.</p>
  *
  * <p>The activity follows Android Wear conventions, changing the UI when the screen is dimmed on
- * the device, displaying a simplified version: black background, normal style and no shadow.</p>
+ * the device, displaying a simplified version: the ambient variant of the background image prepared
+ * by the handheld or a black background, white text and no shadow.</p>
  *
  * @author Julio García Muñoz (ZhDev)
  */
 public class WatchFaceActivity extends Activity implements DisplayManager.DisplayListener,
-        SharedPreferences.OnSharedPreferenceChangeListener {
+        PreferenceBatch.Listener, BackgroundLoader.Callback {
 
-    private LinearLayout mWatchContainer;
+    private WatchFaceRenderer mRenderer;
 
-    private HumanTextClock mWatchTime;
+    private BackgroundLoader mBackgroundLoader;
 
-    private ShortDateClock mWatchDate;
+    private BackgroundLoader mAmbientBackgroundLoader;
 
     private boolean mDisplayDimmed;
 
@@ -68,30 +66,45 @@ public class WatchFaceActivity extends Activity implements DisplayManager.Displa
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
-        setContentView(R.layout.activity_watch_face);
+        // Both renderers display the same watch face, the canvas one draws it in a single view
+        boolean useCanvasRenderer = getResources().getBoolean(R.bool.use_canvas_renderer);
+        if (useCanvasRenderer) {
+            setContentView(R.layout.activity_watch_face_canvas);
+        } else {
+            setContentView(R.layout.activity_watch_face);
+        }
 
         DisplayManager displayManager = (DisplayManager) getSystemService(Context.DISPLAY_SERVICE);
         displayManager.registerDisplayListener(this, new Handler(getMainLooper()));
 
-        getSharedPreferences(Constants.PREFS_NAME, MODE_PRIVATE)
-                .registerOnSharedPreferenceChangeListener(this);
+        PreferenceBatch.addListener(this);
 
         mDisplayDimmed = false;
         mDisplayManager = (DisplayManager) getSystemService(Context.DISPLAY_SERVICE);
 
-        mWatchContainer = (LinearLayout) findViewById(R.id.watch_view);
-        mWatchTime = (HumanTextClock) findViewById(R.id.watch_time);
-        mWatchDate = (ShortDateClock) findViewById(R.id.watch_date);
+        if (useCanvasRenderer) {
+            mRenderer = (WatchFaceView) findViewById(R.id.watch_view);
+        } else {
+            mRenderer = new ClockViewsRenderer(findViewById(R.id.bound_box));
+        }
+
+        BitmapPool pool = BackgroundCache.getInstance(this).getPool();
+        mBackgroundLoader = new BackgroundLoader(this, pool, this);
+        mAmbientBackgroundLoader = new BackgroundLoader(this, pool, this);
+
+        DisplayInfoPublisher.publish(this);
+        BackgroundIngestService.migrateLegacyBackground(this);
 
         loadSavedValues();
     }
 
     @Override
     protected void onDestroy() {
+        mBackgroundLoader.cancel();
+        mAmbientBackgroundLoader.cancel();
         DisplayManager displayManager = (DisplayManager) getSystemService(Context.DISPLAY_SERVICE);
         displayManager.unregisterDisplayListener(this);
-        getSharedPreferences(Constants.PREFS_NAME, MODE_PRIVATE)
-                .unregisterOnSharedPreferenceChangeListener(this);
+        PreferenceBatch.removeListener(this);
         super.onDestroy();
     }
 
@@ -127,119 +140,165 @@ public class WatchFaceActivity extends Activity implements DisplayManager.Displa
 
         switch (state) {
             case Display.STATE_DOZING: // The UI is simplified
-                mWatchContainer.setBackground(null);
-                mWatchTime.setTextColor(Color.WHITE);
-                shadowVisible(mWatchTime, false);
-                if (mWatchDate.getVisibility() == View.VISIBLE) {
-                    mWatchDate.setTextColor(Color.WHITE);
-                    shadowVisible(mWatchDate, false);
-                }
-                mWatchTime.setAnimationsEnabled(false);
-                mWatchDate.setAnimationsEnabled(false);
+                mRenderer.setAmbientMode(true);
                 mDisplayDimmed = true;
                 break;
             case Display.STATE_OFF:
                 break;
             default:
                 mDisplayDimmed = false;
-                mWatchTime.setAnimationsEnabled(true);
-                mWatchDate.setAnimationsEnabled(true);
+                mRenderer.setAmbientMode(false);
                 loadSavedValues();
                 break;
         }
     }
 
     @Override
-    public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
+    public void onPreferencesChanged(SharedPreferences preferences, Set<String> keys) {
         /*
         This method is used to listen for changes coming from the DataLayerListenerService. Since
-        the values have to be stored anyways to be used every time the screen wakes up, setting up a
-        listener for changes on SharedPreferences avoids having to setup a separate callback from
-        the service. The changes are retrieved and applied to every view.
+        the values have to be stored anyways to be used every time the screen wakes up, listening
+        for the batches written to the preferences avoids having to setup a separate callback from
+        the service. All the changes received at once arrive in a single batch, and each aspect of
+        the watch face is loaded at most once for it.
          */
-        if (!mDisplayDimmed) {
-            if (Constants.BACKGROUND_COLOR_KEY.equals(key)) {
-                loadBackground(sharedPreferences);
-            } else if (Constants.BACKGROUND_ASSET_LAST_CHANGED_KEY.equals(key)) {
-                loadBackground(sharedPreferences);
-            } else if (Constants.TEXT_COLOR_KEY.equals(key)) {
-                loadTextColor(sharedPreferences);
-            } else if (Constants.TEXT_STYLE_KEY.equals(key)
-                    || Constants.TEXT_FONT_KEY.equals(key)) {
-                loadTextStyleAndFont(sharedPreferences);
-            } else if (Constants.TEXT_SHADOW_KEY.equals(key)) {
-                loadTextShadow(sharedPreferences);
-            } else if (Constants.TEXT_SIZE_KEY.equals(key)) {
-                loadTextSize(sharedPreferences);
-            } else if (Constants.TEXT_POSITION_KEY.equals(key)) {
-                loadTextPosition(sharedPreferences);
-            } else if (Constants.TEXT_CASE_KEY.equals(key)) {
-                loadTextCase(sharedPreferences);
-            } else if (Constants.DATE_KEY.equals(key)) {
-                loadDate(sharedPreferences);
-            }
+        if (mDisplayDimmed) {
+            return;
+        }
+        if (keys.contains(Constants.BACKGROUND_COLOR_KEY)
+                || keys.contains(Constants.BACKGROUND_TYPE_KEY)
+                || keys.contains(Constants.BACKGROUND_HASH_KEY)
+                || keys.contains(Constants.TEXT_SHADOW_KEY)) {
+            loadBackground(preferences);
+        }
+        if (keys.contains(Constants.TEXT_COLOR_KEY)) {
+            loadTextColor(preferences);
+        }
+        if (keys.contains(Constants.TEXT_STYLE_KEY) || keys.contains(Constants.TEXT_FONT_KEY)) {
+            loadTextStyleAndFont(preferences);
+        }
+        if (keys.contains(Constants.TEXT_SHADOW_KEY)) {
+            loadTextShadow(preferences);
+        }
+        if (keys.contains(Constants.TEXT_SIZE_KEY)) {
+            loadTextSize(preferences);
+        }
+        if (keys.contains(Constants.TEXT_POSITION_KEY)) {
+            loadTextPosition(preferences);
+        }
+        if (keys.contains(Constants.TEXT_CASE_KEY)) {
+            loadTextCase(preferences);
+        }
+        if (keys.contains(Constants.DATE_KEY)) {
+            loadDate(preferences);
         }
     }
 
     private void loadBackground(SharedPreferences preferences) {
         int backgroundType = preferences.getInt(Constants.BACKGROUND_TYPE_KEY,
                 Constants.BACKGROUND_TYPE_COLOR);
-        Drawable drawable = null;
-        int color;
-        if (backgroundType == Constants.BACKGROUND_TYPE_COLOR) {
-            color = preferences.getInt(Constants.BACKGROUND_COLOR_KEY,
-                    getResources().getColor(android.R.color.holo_blue_dark));
-            drawable = new ColorDrawable(color);
-        } else if (backgroundType == Constants.BACKGROUND_TYPE_IMAGE) {
-            try {
-                InputStream inputStream = openFileInput(Constants.BACKGROUND_ASSET_FILE_NAME);
-                drawable = new BitmapDrawable(getResources(), inputStream);
-            } catch (FileNotFoundException e) {
-                color = preferences.getInt(Constants.BACKGROUND_COLOR_KEY,
-                        getResources().getColor(android.R.color.holo_blue_dark));
-                drawable = new ColorDrawable(color);
-            }
+        int color = preferences.getInt(Constants.BACKGROUND_COLOR_KEY,
+                getResources().getColor(android.R.color.holo_blue_dark));
+        String hash = preferences.getString(Constants.BACKGROUND_HASH_KEY, null);
+        if (backgroundType == Constants.BACKGROUND_TYPE_IMAGE && hash != null) {
+            // The decoded images are kept between wake ups, they're only read again when another
+            // one is selected
+            File directory = BackgroundLibrary.getInstance(this).getDirectory(hash);
+            // Without the text shadow the dimmed variant keeps the text legible
+            boolean showShadow = preferences.getBoolean(Constants.TEXT_SHADOW_KEY, true);
+            String variant = showShadow ? Constants.BACKGROUND_VARIANT_DEFAULT
+                    : Constants.BACKGROUND_VARIANT_DIMMED;
+            // The color is displayed until the image is loaded
+            loadBackgroundSlot(BackgroundCache.SLOT_INTERACTIVE, directory, hash + variant,
+                    new ColorDrawable(color), variant, Constants.BACKGROUND_VARIANT_DEFAULT);
+            loadBackgroundSlot(BackgroundCache.SLOT_AMBIENT, directory,
+                    hash + Constants.BACKGROUND_VARIANT_AMBIENT, null,
+                    Constants.BACKGROUND_VARIANT_AMBIENT);
+        } else {
+            clearBackgroundSlot(BackgroundCache.SLOT_INTERACTIVE, new ColorDrawable(color));
+            clearBackgroundSlot(BackgroundCache.SLOT_AMBIENT, null);
         }
-        mWatchContainer.setBackground(drawable);
+    }
+
+    /**
+     * Displays the cached background of a slot or starts loading it, displaying a placeholder in
+     * the meantime.
+     */
+    private void loadBackgroundSlot(int slot, File directory, String key, Drawable placeholder,
+            String... variants) {
+        Bitmap bitmap = BackgroundCache.getInstance(this).get(slot, key);
+        if (bitmap != null) {
+            getBackgroundLoader(slot).cancel();
+            setBackground(slot, new BitmapDrawable(getResources(), bitmap));
+        } else {
+            clearBackgroundSlot(slot, placeholder);
+            getBackgroundLoader(slot).load(directory, key, variants);
+        }
+    }
+
+    /**
+     * Replaces the background of a slot with a placeholder. Since the previous image isn't
+     * displayed anymore, it's returned to the pool and reused for the next one.
+     */
+    private void clearBackgroundSlot(int slot, Drawable placeholder) {
+        getBackgroundLoader(slot).cancel();
+        setBackground(slot, placeholder);
+        BackgroundCache cache = BackgroundCache.getInstance(this);
+        cache.recycle(cache.remove(slot));
+    }
+
+    private BackgroundLoader getBackgroundLoader(int slot) {
+        return slot == BackgroundCache.SLOT_AMBIENT ? mAmbientBackgroundLoader
+                : mBackgroundLoader;
+    }
+
+    private void setBackground(int slot, Drawable drawable) {
+        if (slot == BackgroundCache.SLOT_AMBIENT) {
+            mRenderer.setAmbientBackground(drawable);
+        } else {
+            mRenderer.setFaceBackground(drawable);
+        }
+    }
+
+    @Override
+    public void onBackgroundLoaded(BackgroundLoader loader, String key, Bitmap bitmap) {
+        int slot = loader == mAmbientBackgroundLoader ? BackgroundCache.SLOT_AMBIENT
+                : BackgroundCache.SLOT_INTERACTIVE;
+        BackgroundCache cache = BackgroundCache.getInstance(this);
+        Bitmap previous = cache.put(slot, key, bitmap);
+        setBackground(slot, new BitmapDrawable(getResources(), bitmap));
+        cache.recycle(previous);
+    }
+
+    @Override
+    public void onBackgroundFailed(BackgroundLoader loader, String key) {
+        // The placeholder stays as the background
     }
 
     private void loadTextCase(SharedPreferences preferences) {
         int textCase = preferences.getInt(Constants.TEXT_CASE_KEY, Constants.TEXT_CASE_NO_CAPS);
-        mWatchTime.setTextCase(textCase);
+        mRenderer.setTextCase(textCase);
     }
 
     private void loadTextColor(SharedPreferences preferences) {
         int textColor = preferences.getInt(Constants.TEXT_COLOR_KEY, Color.WHITE);
-        mWatchTime.setTextColor(textColor);
-        mWatchDate.setTextColor(textColor);
+        mRenderer.setTextColor(textColor);
     }
 
     private void loadTextPosition(SharedPreferences preferences) {
         int textPosition = preferences.getInt(Constants.TEXT_POSITION_KEY,
                 Constants.TEXT_POSITION_CENTER_CENTER);
-        int gravity = Constants.positionToGravity(textPosition);
-        mWatchTime.setGravity(gravity);
-        mWatchDate.setGravity(gravity);
-        mWatchContainer.setGravity(gravity);
+        mRenderer.setTextPosition(Constants.positionToGravity(textPosition));
     }
 
     private void loadTextShadow(SharedPreferences preferences) {
         boolean showShadow = preferences.getBoolean(Constants.TEXT_SHADOW_KEY, true);
-        shadowVisible(mWatchTime, showShadow);
-        shadowVisible(mWatchDate, showShadow);
-    }
-
-    private void shadowVisible(TextView textView, boolean visible) {
-        if (visible) {
-            textView.setShadowLayer(3.0F, 3.0F, 3.0F, Color.BLACK);
-        } else {
-            textView.setShadowLayer(0.0F, 0.0F, 0.0F, 0x00000000);
-        }
+        mRenderer.setTextShadow(showShadow);
     }
 
     private void loadTextSize(SharedPreferences preferences) {
         float textSize = preferences.getFloat(Constants.TEXT_SIZE_KEY, Constants.TEXT_SIZE_LARGE);
-        mWatchTime.setTextSize(TypedValue.COMPLEX_UNIT_SP, textSize);
+        mRenderer.setTextSize(textSize);
     }
 
     private void loadTextStyleAndFont(SharedPreferences preferences) {
@@ -251,19 +310,13 @@ public class WatchFaceActivity extends Activity implements DisplayManager.Displa
         // might be in an invalid state
         if (font.hasStyle(textStyle)) {
             Typeface typeface = font.getTypeface(getApplicationContext(), textStyle);
-            mWatchTime.setTypeface(typeface);
-            mWatchTime.setText(mWatchTime.getText());
-            mWatchDate.setTypeface(typeface);
-            mWatchDate.setText(mWatchDate.getText());
+            String typefaceKey = font.getFontCode() + '-' + textStyle;
+            mRenderer.setTypeface(typeface, typefaceKey);
         }
     }
 
     private void loadDate(SharedPreferences preferences) {
         boolean showDate = preferences.getBoolean(Constants.DATE_KEY, false);
-        if (showDate) {
-            mWatchDate.setVisibility(View.VISIBLE);
-        } else {
-            mWatchDate.setVisibility(View.GONE);
-        }
+        mRenderer.setDateVisible(showDate);
     }
 }
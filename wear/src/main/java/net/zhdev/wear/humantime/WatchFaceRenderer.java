@@ -0,0 +1,80 @@
+/*
+ * Copyright 2014 Julio García Muñoz (ZhDev)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.zhdev.wear.humantime;
+
+import android.graphics.Typeface;
+import android.graphics.drawable.Drawable;
+
+/**
+ * <p><code>WatchFaceRenderer</code> is what {@link WatchFaceActivity} draws the watch face with.
+ * It receives the settings already loaded and decides how to display them.</p>
+ *
+ * <p>There are two implementations: {@link ClockViewsRenderer}, which uses a hierarchy of
+ * views, and {@link WatchFaceView}, which draws everything in a single view.</p>
+ *
+ * @author Julio García Muñoz (ZhDev)
+ */
+public interface WatchFaceRenderer {
+
+    /**
+     * @param background the background of the watch face, drawn behind the texts
+     */
+    void setFaceBackground(Drawable background);
+
+    /**
+     * @param background the background displayed in ambient mode, or null to use black
+     */
+    void setAmbientBackground(Drawable background);
+
+    void setTextColor(int color);
+
+    void setTextShadow(boolean visible);
+
+    /**
+     * @param size the base size of the time in scaled pixels
+     */
+    void setTextSize(float size);
+
+    /**
+     * @param gravity the gravity of the texts, as returned by
+     *                {@link net.zhdev.wear.humantime.shared.Constants#positionToGravity(int)}
+     */
+    void setTextPosition(int gravity);
+
+    /**
+     * @see net.zhdev.wear.humantime.shared.Constants
+     */
+    void setTextCase(int textCase);
+
+    /**
+     * @param typeface    the typeface of the texts
+     * @param typefaceKey a string that identifies the typeface and its style
+     */
+    void setTypeface(Typeface typeface, String typefaceKey);
+
+    void setDateVisible(boolean visible);
+
+    /**
+     * Switches to the simplified UI used while the screen is dimmed: the ambient background, white
+     * text and no shadow. The other settings are kept, so they're restored when leaving ambient
+     * mode.
+     *
+     * @param ambient true when the screen is dimmed
+     */
+    void setAmbientMode(boolean ambient);
+
+}
@@ -0,0 +1,509 @@
+/*
+ * Copyright 2014 Julio García Muñoz (ZhDev)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.zhdev.wear.humantime;
+
+import android.content.Context;
+import android.content.res.Configuration;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Typeface;
+import android.graphics.drawable.Drawable;
+import android.text.TextPaint;
+import android.util.AttributeSet;
+import android.util.TypedValue;
+import android.view.Gravity;
+import android.view.View;
+
+/**
+ * <p><code>WatchFaceView</code> draws the whole watch face, the background, the date and the
+ * time, directly on its canvas. It's the alternative to the hierarchy of views used by
+ * {@link ClockViewsRenderer}: a tick or a setting change only invalidates this view, without
+ * measuring or laying out anything.</p>
+ *
+ * <p>Every change marks what it affects with dirty flags (the fitted sizes of the texts or their
+ * position) and the work is done once, right before drawing. The paints, font metrics and line
+ * offsets are allocated with the view, so drawing a frame allocates nothing. Text changes aren't
+ * animated.</p>
+ *
+ * @author Julio García Muñoz (ZhDev)
+ */
+public class WatchFaceView extends View implements WatchFaceRenderer {
+
+    private static final float DEFAULT_TIME_TEXT_SIZE_SP = 30.0F;
+
+    private static final float DATE_TEXT_SIZE_SP = 15.0F;
+
+    private static final float MIN_TEXT_SIZE_SP = 8.0F;
+
+    private static final int DIRTY_TIME_SIZE = 1;
+
+    private static final int DIRTY_DATE_SIZE = 1 << 1;
+
+    private static final int DIRTY_POSITION = 1 << 2;
+
+    private static final int DIRTY_ALL = DIRTY_TIME_SIZE | DIRTY_DATE_SIZE | DIRTY_POSITION;
+
+    private final TextPaint mTimePaint = new TextPaint(Paint.ANTI_ALIAS_FLAG);
+
+    private final TextPaint mDatePaint = new TextPaint(Paint.ANTI_ALIAS_FLAG);
+
+    private final Paint.FontMetrics mTimeMetrics = new Paint.FontMetrics();
+
+    private final Paint.FontMetrics mDateMetrics = new Paint.FontMetrics();
+
+    private final TextFitter mTextFitter = new TextFitter();
+
+    private int[] mLineStarts = new int[3];
+
+    private int[] mLineEnds = new int[3];
+
+    private int mLineCount;
+
+    private DisplayPhrases mPhrases;
+
+    private TransitionSchedule mSchedule;
+
+    private String mTimeText = "";
+
+    private String mDateText = "";
+
+    private Drawable mBackground;
+
+    private Drawable mAmbientBackground;
+
+    private int mTextColor = Color.WHITE;
+
+    private boolean mTextShadow;
+
+    private float mBaseTimeTextSize;
+
+    private float mDateTextSize;
+
+    private float mMinTextSize;
+
+    private int mGravity = Gravity.CENTER;
+
+    private boolean mDateVisible;
+
+    private boolean mAmbient;
+
+    private boolean mAttached;
+
+    private int mDirty = DIRTY_ALL;
+
+    private float mTextX;
+
+    private float mDateBaseline;
+
+    private float mTimeBaseline;
+
+    private float mTimeLineHeight;
+
+    private final TickDispatcher.Listener mTimeListener = new TickDispatcher.Listener() {
+        @Override
+        public String getTimeZone() {
+            return null;
+        }
+
+        @Override
+        public long getUpdatePeriod() {
+            return 5 * TimeSnapshot.MINUTE_MILLIS;
+        }
+
+        @Override
+        public long getUpdatePhase() {
+            // The minutes are rounded to the nearest multiple of 5, so the text changes 3 minutes
+            // after each multiple
+            return 3 * TimeSnapshot.MINUTE_MILLIS;
+        }
+
+        @Override
+        public void onTimeChanged(TransitionSchedule schedule) {
+            setSchedule(schedule);
+        }
+    };
+
+    private final TickDispatcher.Listener mDateListener = new TickDispatcher.Listener() {
+        @Override
+        public String getTimeZone() {
+            return null;
+        }
+
+        @Override
+        public long getUpdatePeriod() {
+            return TimeSnapshot.DAY_MILLIS;
+        }
+
+        @Override
+        public long getUpdatePhase() {
+            return 0;
+        }
+
+        @Override
+        public void onTimeChanged(TransitionSchedule schedule) {
+            setSchedule(schedule);
+        }
+    };
+
+    public WatchFaceView(Context context) {
+        this(context, null);
+    }
+
+    public WatchFaceView(Context context, AttributeSet attrs) {
+        this(context, attrs, 0);
+    }
+
+    public WatchFaceView(Context context, AttributeSet attrs, int defStyle) {
+        super(context, attrs, defStyle);
+        mPhrases = new DisplayPhrases(context.getResources());
+        mBaseTimeTextSize = spToPx(DEFAULT_TIME_TEXT_SIZE_SP);
+        mDateTextSize = spToPx(DATE_TEXT_SIZE_SP);
+        mMinTextSize = spToPx(MIN_TEXT_SIZE_SP);
+        mTimePaint.setColor(mTextColor);
+        mDatePaint.setColor(mTextColor);
+    }
+
+    private float spToPx(float size) {
+        return TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_SP, size,
+                getResources().getDisplayMetrics());
+    }
+
+    /**
+     * Takes the texts of the current time from the schedule, invalidating the view only if they
+     * changed.
+     */
+    private void setSchedule(TransitionSchedule schedule) {
+        mSchedule = schedule;
+        String timeText = mPhrases.get(schedule.getPhraseIndex());
+        String dateText = schedule.getDate();
+        if (!timeText.equals(mTimeText)) {
+            mTimeText = timeText;
+            splitLines(timeText);
+            mDirty |= DIRTY_TIME_SIZE | DIRTY_POSITION;
+            invalidate();
+        }
+        if (!dateText.equals(mDateText)) {
+            mDateText = dateText;
+            mDirty |= DIRTY_DATE_SIZE;
+            if (mDateVisible) {
+                invalidate();
+            }
+        }
+    }
+
+    /**
+     * Reads the current texts again, after something that changes them without a tick.
+     */
+    private void refreshTexts() {
+        if (mSchedule != null) {
+            mTimeText = "";
+            mDateText = "";
+            setSchedule(mSchedule);
+        }
+    }
+
+    /**
+     * Stores the offsets of the lines of the time. The arrays only grow when a phrase has more
+     * lines than any previous one.
+     */
+    private void splitLines(String text) {
+        int count = 1;
+        for (int i = text.length() - 1; i >= 0; i--) {
+            if (text.charAt(i) == '\n') {
+                count++;
+            }
+        }
+        if (count > mLineStarts.length) {
+            mLineStarts = new int[count];
+            mLineEnds = new int[count];
+        }
+        int line = 0;
+        int start = 0;
+        int length = text.length();
+        for (int i = 0; i <= length; i++) {
+            if (i == length || text.charAt(i) == '\n') {
+                mLineStarts[line] = start;
+                mLineEnds[line] = i;
+                line++;
+                start = i + 1;
+            }
+        }
+        mLineCount = count;
+    }
+
+    private void markDirty(int flags) {
+        mDirty |= flags;
+        invalidate();
+    }
+
+    @Override
+    public void setFaceBackground(Drawable background) {
+        if (background != mBackground) {
+            mBackground = background;
+            if (background != null) {
+                background.setBounds(0, 0, getWidth(), getHeight());
+            }
+            if (!mAmbient) {
+                invalidate();
+            }
+        }
+    }
+
+    @Override
+    public void setAmbientBackground(Drawable background) {
+        if (background != mAmbientBackground) {
+            mAmbientBackground = background;
+            if (background != null) {
+                background.setBounds(0, 0, getWidth(), getHeight());
+            }
+            if (mAmbient) {
+                invalidate();
+            }
+        }
+    }
+
+    @Override
+    public void setTextColor(int color) {
+        if (color != mTextColor) {
+            mTextColor = color;
+            if (!mAmbient) {
+                applyPaintStyle();
+                invalidate();
+            }
+        }
+    }
+
+    @Override
+    public void setTextShadow(boolean visible) {
+        if (visible != mTextShadow) {
+            mTextShadow = visible;
+            if (!mAmbient) {
+                applyPaintStyle();
+                invalidate();
+            }
+        }
+    }
+
+    @Override
+    public void setTextSize(float size) {
+        float baseTimeTextSize = spToPx(size);
+        if (baseTimeTextSize != mBaseTimeTextSize) {
+            mBaseTimeTextSize = baseTimeTextSize;
+            markDirty(DIRTY_TIME_SIZE | DIRTY_POSITION);
+        }
+    }
+
+    @Override
+    public void setTextPosition(int gravity) {
+        if (gravity != mGravity) {
+            mGravity = gravity;
+            markDirty(DIRTY_POSITION);
+        }
+    }
+
+    @Override
+    public void setTextCase(int textCase) {
+        mPhrases.setTextCase(textCase);
+        refreshTexts();
+    }
+
+    @Override
+    public void setTypeface(Typeface typeface, String typefaceKey) {
+        // Typefaces are cached, so the same font gets the same instance
+        if (typeface != mTimePaint.getTypeface()) {
+            mTimePaint.setTypeface(typeface);
+            mDatePaint.setTypeface(typeface);
+            markDirty(DIRTY_ALL);
+        }
+    }
+
+    @Override
+    public void setDateVisible(boolean visible) {
+        if (visible != mDateVisible) {
+            mDateVisible = visible;
+            markDirty(DIRTY_TIME_SIZE | DIRTY_POSITION);
+        }
+    }
+
+    @Override
+    public void setAmbientMode(boolean ambient) {
+        if (ambient != mAmbient) {
+            mAmbient = ambient;
+            applyPaintStyle();
+            invalidate();
+        }
+    }
+
+    /**
+     * Sets the color, shadow and antialiasing of the paints for the current mode. The metrics
+     * don't depend on them, so the layout is kept.
+     */
+    private void applyPaintStyle() {
+        int color = mAmbient ? Color.WHITE : mTextColor;
+        boolean shadow = !mAmbient && mTextShadow;
+        applyPaintStyle(mTimePaint, color, shadow);
+        applyPaintStyle(mDatePaint, color, shadow);
+    }
+
+    private void applyPaintStyle(Paint paint, int color, boolean shadow) {
+        paint.setColor(color);
+        paint.setAntiAlias(!mAmbient);
+        if (shadow) {
+            paint.setShadowLayer(3.0F, 3.0F, 3.0F, Color.BLACK);
+        } else {
+            paint.clearShadowLayer();
+        }
+    }
+
+    @Override
+    protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+        super.onSizeChanged(w, h, oldw, oldh);
+        if (mBackground != null) {
+            mBackground.setBounds(0, 0, w, h);
+        }
+        if (mAmbientBackground != null) {
+            mAmbientBackground.setBounds(0, 0, w, h);
+        }
+        mDirty = DIRTY_ALL;
+    }
+
+    @Override
+    protected void onConfigurationChanged(Configuration newConfig) {
+        super.onConfigurationChanged(newConfig);
+        mPhrases.onConfigurationChanged(newConfig);
+        refreshTexts();
+    }
+
+    /**
+     * Fits the texts and computes their position, only for the parts marked as dirty.
+     */
+    private void updateLayout() {
+        int left = getPaddingLeft();
+        int right = getWidth() - getPaddingRight();
+        int top = getPaddingTop();
+        int bottom = getHeight() - getPaddingBottom();
+        int width = right - left;
+
+        if ((mDirty & DIRTY_DATE_SIZE) != 0) {
+            mDatePaint.setTextSize(mTextFitter.fit(mDateText, mDatePaint, mDateTextSize,
+                    mMinTextSize, width, 0));
+            mDatePaint.getFontMetrics(mDateMetrics);
+            mDirty |= DIRTY_POSITION;
+        }
+        float dateHeight = mDateVisible ? mDateMetrics.descent - mDateMetrics.ascent : 0;
+
+        if ((mDirty & DIRTY_TIME_SIZE) != 0) {
+            int maxHeight = (int) (bottom - top - dateHeight);
+            mTimePaint.setTextSize(mTextFitter.fit(mTimeText, mTimePaint, mBaseTimeTextSize,
+                    mMinTextSize, width, maxHeight));
+            mTimePaint.getFontMetrics(mTimeMetrics);
+            mTimeLineHeight = mTimePaint.getFontSpacing();
+        }
+
+        if ((mDirty & (DIRTY_POSITION | DIRTY_TIME_SIZE)) != 0) {
+            Paint.Align align;
+            switch (mGravity & Gravity.HORIZONTAL_GRAVITY_MASK) {
+                case Gravity.LEFT:
+                    align = Paint.Align.LEFT;
+                    mTextX = left;
+                    break;
+                case Gravity.RIGHT:
+                    align = Paint.Align.RIGHT;
+                    mTextX = right;
+                    break;
+                default:
+                    align = Paint.Align.CENTER;
+                    mTextX = left + width / 2.0F;
+                    break;
+            }
+            mTimePaint.setTextAlign(align);
+            mDatePaint.setTextAlign(align);
+
+            float timeHeight = mTimeLineHeight * (mLineCount - 1)
+                    + mTimeMetrics.descent - mTimeMetrics.ascent;
+            float blockHeight = dateHeight + timeHeight;
+            float blockTop;
+            switch (mGravity & Gravity.VERTICAL_GRAVITY_MASK) {
+                case Gravity.TOP:
+                    blockTop = top;
+                    break;
+                case Gravity.BOTTOM:
+                    blockTop = bottom - blockHeight;
+                    break;
+                default:
+                    blockTop = top + (bottom - top - blockHeight) / 2.0F;
+                    break;
+            }
+            mDateBaseline = blockTop - mDateMetrics.ascent;
+            mTimeBaseline = blockTop + dateHeight - mTimeMetrics.ascent;
+        }
+        mDirty = 0;
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        Drawable background = mAmbient ? mAmbientBackground : mBackground;
+        if (background != null) {
+            background.draw(canvas);
+        }
+        if (mTimeText.isEmpty() || getWidth() == 0) {
+            return;
+        }
+        if (mDirty != 0) {
+            updateLayout();
+        }
+        if (mDateVisible) {
+            canvas.drawText(mDateText, 0, mDateText.length(), mTextX, mDateBaseline, mDatePaint);
+        }
+        float baseline = mTimeBaseline;
+        for (int i = 0; i < mLineCount; i++) {
+            canvas.drawText(mTimeText, mLineStarts[i], mLineEnds[i], mTextX, baseline,
+                    mTimePaint);
+            baseline += mTimeLineHeight;
+        }
+    }
+
+    @Override
+    protected void onAttachedToWindow() {
+        super.onAttachedToWindow();
+
+        if (!mAttached) {
+            mAttached = true;
+
+            if (isInEditMode()) {
+                return;
+            }
+            TickDispatcher dispatcher = TickDispatcher.getInstance(getContext());
+            dispatcher.addListener(mTimeListener);
+            dispatcher.addListener(mDateListener);
+        }
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+
+        if (mAttached) {
+            TickDispatcher dispatcher = TickDispatcher.getInstance(getContext());
+            dispatcher.removeListener(mTimeListener);
+            dispatcher.removeListener(mDateListener);
+            mAttached = false;
+        }
+    }
+
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2014 Julio García Muñoz (ZhDev)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.zhdev.wear.humantime;
+
+import com.google.android.gms.common.ConnectionResult;
+import com.google.android.gms.common.api.GoogleApiClient;
+import com.google.android.gms.wearable.Wearable;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p><code>WearableConnection</code> keeps a single connection to the Wear API for the lifetime
+ * of its owner, so a burst of requests doesn't pay the connection setup for each of them.</p>
+ *
+ * <p>The client is connected lazily, the first time it's needed, and connected again if the
+ * connection is lost. After a failed attempt the next one waits until a delay passes, which
+ * doubles with every consecutive failure. The latency of the connections and the number of
+ * failures are recorded and logged when the connection is closed.</p>
+ *
+ * <p>Connecting blocks, so {@link #connect()} must not be called from the main thread.</p>
+ *
+ * @author Julio García Muñoz (ZhDev)
+ */
+public class WearableConnection {
+
+    private static final String TAG = "Human Time";
+
+    private static final int TIMEOUT_MS = 5000;
+
+    private static final long MIN_BACKOFF_MS = 1000;
+
+    private static final long MAX_BACKOFF_MS = 60 * 1000;
+
+    private static final long MAX_WAIT_MS = 30 * 1000;
+
+    private final GoogleApiClient mGoogleApiClient;
+
+    private long mBackoffMs;
+
+    private long mNextAttempt;
+
+    private int mConnections;
+
+    private int mFailures;
+
+    private int mConsecutiveFailures;
+
+    private long mTotalLatencyMs;
+
+    public WearableConnection(Context context) {
+        mGoogleApiClient = new GoogleApiClient.Builder(context)
+                .addApi(Wearable.API)
+                .build();
+    }
+
+    /**
+     * @return the client, only usable after {@link #connect()} returns true
+     */
+    public GoogleApiClient getClient() {
+        return mGoogleApiClient;
+    }
+
+    /**
+     * Connects the client if it isn't already connected, blocking until the connection is done.
+     * If the last attempt failed, it first waits for its backoff delay to pass. It only fails
+     * without trying if the delay is longer than {@value #MAX_WAIT_MS} ms or the thread is
+     * interrupted.
+     *
+     * @return true if the client is connected, false otherwise
+     */
+    public synchronized boolean connect() {
+        if (mGoogleApiClient.isConnected()) {
+            return true;
+        }
+        long now = SystemClock.elapsedRealtime();
+        if (mNextAttempt - now > MAX_WAIT_MS) {
+            return false;
+        }
+        while (now < mNextAttempt) {
+            try {
+                // Waiting releases the lock, so the connection can still be closed meanwhile
+                wait(mNextAttempt - now);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+            now = SystemClock.elapsedRealtime();
+        }
+        ConnectionResult result = mGoogleApiClient
+                .blockingConnect(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        long latency = SystemClock.elapsedRealtime() - now;
+        if (result.isSuccess()) {
+            mConnections++;
+            mTotalLatencyMs += latency;
+            mConsecutiveFailures = 0;
+            mBackoffMs = 0;
+            mNextAttempt = 0;
+            return true;
+        }
+        mFailures++;
+        mConsecutiveFailures++;
+        mBackoffMs = mBackoffMs == 0 ? MIN_BACKOFF_MS : Math.min(mBackoffMs * 2, MAX_BACKOFF_MS);
+        mNextAttempt = SystemClock.elapsedRealtime() + mBackoffMs;
+        Log.w(TAG, "Wear API connection failed (" + result.getErrorCode() + "), "
+                + mConsecutiveFailures + " in a row, retrying in " + mBackoffMs + " ms");
+        return false;
+    }
+
+    /**
+     * Closes the connection and logs its statistics.
+     */
+    public synchronized void disconnect() {
+        mGoogleApiClient.disconnect();
+        if ((mConnections > 0 || mFailures > 0) && Log.isLoggable(TAG, Log.INFO)) {
+            long averageLatencyMs = mConnections > 0 ? mTotalLatencyMs / mConnections : 0;
+            Log.i(TAG, "Wear API connections: " + mConnections + ", failures: " + mFailures
+                    + ", average latency: " + averageLatencyMs + " ms");
+        }
+    }
+
+}